@@ -0,0 +1,40 @@
+#!/bin/bash
+# Builds java/build/cafe.jar: Cafe compiled for Java 8 with the PostgreSQL
+# JDBC driver unpacked into the same jar, so it runs with "java -jar".
+# The driver is fetched from Maven Central the first time, and checked
+# against its pinned SHA-256 before every build; set PGJDBC_SHA256 along with
+# PGJDBC_VERSION to build with another driver version.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+PGJDBC_VERSION=${PGJDBC_VERSION:-42.7.3}
+PGJDBC_SHA256=${PGJDBC_SHA256:-a2644cbfba1baa145ff7e8c8ef582a6eed7a7ec4ca792f7f054122bdec756268}
+PGJDBC_JAR=$DIR/../lib/postgresql-$PGJDBC_VERSION.jar
+BUILD=$DIR/../build
+
+if [ ! -f "$PGJDBC_JAR" ]; then
+	mkdir -p $DIR/../lib
+	curl -fsSL -o "$PGJDBC_JAR.part" \
+		https://repo1.maven.org/maven2/org/postgresql/postgresql/$PGJDBC_VERSION/postgresql-$PGJDBC_VERSION.jar || exit 1
+	mv "$PGJDBC_JAR.part" "$PGJDBC_JAR"
+fi
+if ! echo "$PGJDBC_SHA256  $PGJDBC_JAR" | sha256sum -c --quiet -; then
+	echo "$PGJDBC_JAR does not match its SHA-256, delete it to download it again" >&2
+	exit 1
+fi
+
+# compile the java program
+rm -rf $BUILD/jar
+mkdir -p $BUILD/jar
+javac --release 8 -d $BUILD/jar $DIR/../src/Cafe.java || exit 1
+
+# bundle the driver, minus its manifest
+(cd $BUILD/jar && unzip -qo "$PGJDBC_JAR" -x 'META-INF/MANIFEST.MF') || exit 1
+jar cfe $BUILD/cafe.jar Cafe -C $BUILD/jar . || exit 1
+
+# with a database to train against (build_jar.sh <dbname> <port> <user>),
+# record the classes a session loads into a class-data-sharing archive that
+# compile.sh starts from; needs JDK 13 or newer at run time
+rm -f $BUILD/cafe.jsa
+if [ $# -eq 3 ]; then
+	printf '9\n' | java -XX:ArchiveClassesAtExit=$BUILD/cafe.jsa -jar $BUILD/cafe.jar "$@" > /dev/null \
+		|| echo "Class-data-sharing archive not created, starting without it"
+fi
@@ -1,13 +1,19 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+if [ -n "$JAVA_HOME" ]; then
+	export PATH=$JAVA_HOME/bin:$PATH
+fi
 
-# compile the java program
-javac /extra/amuno034/needed_files/166-final/java/src/Cafe.java
+# compile the java program and bundle the JDBC driver (needs JDK 8 or newer)
+$DIR/build_jar.sh $USER"_DB" $PGPORT $USER || exit 1
+
+# start from the class-data-sharing archive when the build made one
+if [ -f $DIR/../build/cafe.jsa ]; then
+	CDS="-XX:SharedArchiveFile=$DIR/../build/cafe.jsa"
+fi
 
 #run the java program
 #Use your database name, port number and login
-java -cp /extra/amuno034/needed_files/166-final/java/lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER
-
+#add -Dcafe.startup.report=true to print the startup timeline on exit
+java $CDS -jar $DIR/../build/cafe.jar $USER"_DB" $PGPORT $USER
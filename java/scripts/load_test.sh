@@ -0,0 +1,17 @@
+#!/bin/bash
+# Load-tests Cafe with scripted customers: runs the scenario (default
+# java/scenarios/order.txt) for CUSTOMERS concurrent customers, SESSIONS
+# times each, and prints the throughput and latency per scenario line.
+# Build the jar first with compile.sh or build_jar.sh.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SCENARIO=${1:-$DIR/../scenarios/order.txt}
+
+if [ -n "$JAVA_HOME" ]; then
+	export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+# each customer places two orders per session; lift the per-login order
+# rate limit so repeated sessions are not refused
+java -Dcafe.rate.order.burst=1000 \
+	-cp $DIR/../build/cafe.jar 'Cafe$LoadDriver' \
+	$USER"_DB" $PGPORT $USER $SCENARIO ${CUSTOMERS:-20} ${SESSIONS:-5}
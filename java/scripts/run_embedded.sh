@@ -0,0 +1,22 @@
+#!/bin/bash
+# Runs Cafe against an in-process H2 database (PostgreSQL mode) seeded from
+# data/*.csv, so no PostgreSQL install is needed. Point H2_JAR at an H2 jar,
+# e.g. h2-2.2.224.jar from Maven Central.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+H2_JAR=${H2_JAR:-$DIR/../lib/h2.jar}
+
+if [ ! -f "$H2_JAR" ]; then
+	echo "H2 jar not found at $H2_JAR, set H2_JAR to its location"
+	exit 1
+fi
+
+# compile the java program
+mkdir -p $DIR/../classes
+javac -d $DIR/../classes $DIR/../src/Cafe.java || exit 1
+
+#run the java program against the embedded database
+java -cp $DIR/../classes:$H2_JAR \
+	-Dcafe.backend=embedded \
+	-Dcafe.sql.dir=$DIR/../../sql/src \
+	-Dcafe.data.dir=$DIR/../../data \
+	Cafe cafe 0 sa
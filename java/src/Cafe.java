@@ -16,13 +16,69 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.lang.management.ManagementFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.sql.Timestamp;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -32,11 +88,160 @@ import java.util.Date;
  *
  */
 public class Cafe {
-   // reference to physical database connection.
-   private Connection _connection = null;
+   /**
+    * The database engines Cafe can run against, chosen with the cafe.backend
+    * system property (postgres by default).
+    */
+   enum Backend {
+      // a PostgreSQL server on localhost
+      POSTGRES("org.postgresql.Driver"),
+      // an in-process H2 database in PostgreSQL mode, seeded from data/*.csv
+      EMBEDDED("org.h2.Driver");
+
+      final String driver;
+
+      Backend(String driver) {
+         this.driver = driver;
+      }
+
+      String url(String dbname, String dbport) {
+         if (this == EMBEDDED) {
+            return "jdbc:h2:mem:" + dbname + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+         }
+         return "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      }
+
+      Properties properties(String user, String passwd) {
+         Properties props = new Properties();
+         props.setProperty("user", user);
+         props.setProperty("password", passwd);
+         if (this == POSTGRES) {
+            // prepare statements on the server from their first execution and
+            // get numeric, timestamp and integer columns back in binary
+            props.setProperty("prepareThreshold", System.getProperty("cafe.prepareThreshold", "1"));
+            props.setProperty("binaryTransfer", "true");
+            // send batched inserts as multi-row INSERTs
+            props.setProperty("reWriteBatchedInserts", "true");
+            // let the server type string parameters, so they compare as
+            // char(n) and the char(n) key indexes stay usable
+            props.setProperty("stringtype", "unspecified");
+            // the server gives up on statements the client stopped waiting
+            // for, even when the cancel request is lost
+            if (STATEMENT_TIMEOUT > 0) {
+               props.setProperty("options", "-c statement_timeout=" + STATEMENT_TIMEOUT * 1000);
+            }
+         }
+         return props;
+      }
+   }
+
+   /**
+    * The kitchen states of an order item, stored in ItemStatus.status as their
+    * code. Items only move forward, from NOT_STARTED to FINISHED.
+    */
+   enum ItemState {
+      NOT_STARTED(0, "Hasn't started"),
+      STARTED(1, "Started"),
+      FINISHED(2, "Finished");
+
+      final short code;
+      final String label;
+
+      ItemState(int code, String label) {
+         this.code = (short) code;
+         this.label = label;
+      }
+
+      static ItemState of(String code) {
+         short value = Short.parseShort(code.trim());
+         for (ItemState state : values()) {
+            if (state.code == value) {
+               return state;
+            }
+         }
+         throw new IllegalArgumentException("Unknown item status " + value);
+      }
+
+      ItemState next() {
+         return this == FINISHED ? FINISHED : values()[ordinal() + 1];
+      }
+
+      // SQL giving the label of a status column, for screens and archives
+      // that show the status as text
+      static String label(String column) {
+         StringBuilder sql = new StringBuilder("CASE ").append(column);
+         for (ItemState state : values()) {
+            sql.append(" WHEN ").append(state.code).append(" THEN '")
+                  .append(state.label.replace("'", "''")).append('\'');
+         }
+         return sql.append(" END").toString();
+      }
+   }
+
+   static final Backend backend = Backend.valueOf(
+         System.getProperty("cafe.backend", "postgres").toUpperCase());
+
+   // reference to physical database connection, opened in the background by
+   // the constructor; use connection() to wait for it.
+   private final FutureTask<Connection> _connection;
+   // the connection opened after the first one was lost, and whether the
+   // current one was lost
+   private Connection _reconnected = null;
+   private boolean _broken = false;
+   // the statement running on the connection, for cancel
+   private volatile Statement _running = null;
+   // seconds a statement may run before it is cancelled, 0 for no limit
+   static final int STATEMENT_TIMEOUT = Integer.getInteger("cafe.statement.timeoutSec", 30);
+   // tries in all for an idempotent read that failed transiently, and the
+   // backoff before a retry: a random wait up to RETRY_BASE_MS doubled per
+   // try, at most RETRY_MAX_MS
+   static final int RETRY_ATTEMPTS = Integer.getInteger("cafe.retry.attempts", 3);
+   static final long RETRY_BASE_MS = Long.getLong("cafe.retry.baseMs", 50);
+   static final long RETRY_MAX_MS = Long.getLong("cafe.retry.maxMs", 1000);
+   // whether the open transaction holds an admission slot for its statements
+   private boolean _admitted = false;
+   // tables the open transaction wrote, see wrote(String)
+   private final Set<String> _writtenTables = new HashSet<String>();
+   // read-only replicas for executeReadQuery, used round robin
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private int _nextReplica = 0;
+   // primary WAL position this session's reads must see, and whether a write
+   // since it was read moved it
+   private long _writeLsn = 0;
+   private boolean _writeLsnStale = false;
+   // how often a versioned update is retried after losing a race
+   static final int MAX_VERSION_RETRIES = 3;
+   // how many unfinished items the kitchen queue shows at once
+   static final int KITCHEN_QUEUE_ROWS = Integer.getInteger("cafe.kitchen.rows", 20);
+   // rows fetched per round trip by executeQueryToCsv
+   static final int EXPORT_FETCH_SIZE = Integer.getInteger("cafe.export.fetchSize", 1000);
+   // connection details, kept so the async executor can open its own connections
+   private String _url, _user, _passwd;
+   // executor for executeQueryAsync, started on first use
+   private ExecutorService _asyncExecutor = null;
+   // connections owned by the async executor threads, one per thread
+   private final List<Connection> _asyncConnections = new ArrayList<Connection>();
+   private final ThreadLocal<Connection> _asyncConnection = new ThreadLocal<Connection>();
+   // the Menu columns shown to users, without the internal itemid
+   static final String FULL_MENU = "SELECT itemName, type, price, description, imageURL FROM Menu";
+   static final List<String> MENU_HEADER = Arrays.asList("Item", "Type", "Price", "Description", "Image");
+   // full menu loaded in the background at startup, used once by fullMenu
+   private CompletableFuture<List<List<String>>> _prefetchedMenu = null;
+   // user types and ids of this session, by login, filled in by the
+   // background loads as they complete; pending ones are still being loaded
+   private final Map<String, String> _userTypes = new ConcurrentHashMap<String, String>();
+   private final Map<String, Integer> _userIds = new ConcurrentHashMap<String, Integer>();
+   private final ConcurrentHashMap<String, CompletableFuture<List<List<String>>>> _pendingUserTypes =
+         new ConcurrentHashMap<String, CompletableFuture<List<List<String>>>>();
+   // favorite items of this session, by login
+   private final Map<String, List<String>> _favorites = new HashMap<String, List<String>>();
+   // columnar archive of order months that have been dropped from the database
+   static OrderArchive archive = new OrderArchive(
+         new File(System.getProperty("cafe.archive.dir", "archive")));
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
+   // This variable can be global for convenience; sessions run by
+   // LoadDriver read their scenario through it instead.
+   static SessionInput in = new SessionInput(
          new InputStreamReader(System.in));
 
    /**
@@ -48,78 +253,355 @@ public class Cafe {
     * @param password the user login password
     * @throws java.sql.SQLException when failed to make a connection.
     */
-   public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
-      System.out.print("Connecting to database...");
-      try {
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println("Connection URL: " + url + "\n");
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      } catch (Exception e) {
-         System.err.println("Error - Unable to Connect to Database: " +
-               e.getMessage());
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      } // end catch
+   public Cafe(String dbname, String dbport, final String user, final String passwd) throws SQLException {
+      // constructs the connection URL
+      final String url = backend.url(dbname, dbport);
+      System.out.println("Connecting to database...Connection URL: " + url + "\n");
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      // read replicas, as host:port[,host:port...]; PostgreSQL only
+      if (backend == Backend.POSTGRES) {
+         for (String hostPort : System.getProperty("cafe.replicas", "").split(",")) {
+            if (!hostPort.trim().isEmpty()) {
+               this._replicas.add(new Replica("jdbc:postgresql://" + hostPort.trim() + "/" + dbname,
+                     backend.properties(user, passwd)));
+            }
+         }
+      }
+      // replays orders an earlier run took while the database was down
+      OrderJournal.start(url, backend.properties(user, passwd));
+      // obtain a physical connection in the background, so loading the driver
+      // and the connection handshake overlap with the first menu; the first
+      // query waits for it
+      this._connection = new FutureTask<Connection>(new Callable<Connection>() {
+         public Connection call() throws Exception {
+            try {
+               Class.forName(backend.driver);
+               Connection connection = DriverManager.getConnection(url, backend.properties(user, passwd));
+               if (backend == Backend.EMBEDDED) {
+                  EmbeddedDatabase.create(url, connection);
+               }
+               Startup.mark("connected");
+               return connection;
+            } catch (Exception e) {
+               System.err.println("Error - Unable to Connect to Database: " +
+                     e.getMessage());
+               System.out.println("Make sure you started postgres on this machine");
+               // a database server may come back, connection() retries it;
+               // an embedded one will not, main exits then
+               throw e;
+            } // end catch
+         }
+      });
+      Thread connector = new Thread(this._connection, "cafe-connect");
+      connector.setDaemon(true);
+      connector.start();
    }// end Cafe
 
+   /*
+    * The physical connection, waiting for the constructor's background
+    * connect. A connection that was lost, or never made, is reopened here,
+    * except in the middle of a transaction: its statements fail until it is
+    * rolled back.
+    */
+   private Connection connection() throws SQLException {
+      Connection connection = this._reconnected;
+      if (connection == null) {
+         try {
+            connection = firstConnection();
+         } catch (SQLException e) {
+            // reopening an embedded database would only create an empty one
+            if (this._admitted || backend == Backend.EMBEDDED) {
+               throw e;
+            }
+            this._broken = true;
+         }
+      }
+      if (!this._broken) {
+         return connection;
+      }
+      if (this._admitted) {
+         throw new SQLException("The connection to the database was lost, the transaction was not saved", "08003");
+      }
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      } catch (SQLException e) {
+         // ignored.
+      }
+      this._reconnected = DriverManager.getConnection(this._url, backend.properties(this._user, this._passwd));
+      this._broken = false;
+      return this._reconnected;
+   }
+
+   // the connection the constructor opened, once it is up
+   private Connection firstConnection() throws SQLException {
+      try {
+         return this._connection.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while connecting to the database", e);
+      } catch (ExecutionException e) {
+         throw new SQLException("Unable to connect to the database", "08001", e.getCause());
+      }
+   }
+
+   /**
+    * Cancels the statement running on the connection, if any. Safe to call
+    * from another thread; the cancelled statement fails with SQLState 57014.
+    */
+   public void cancel() {
+      Statement running = this._running;
+      if (running != null) {
+         try {
+            running.cancel();
+         } catch (SQLException e) {
+            // ignored, it may have just finished.
+         }
+      }
+   }// end cancel
+
+   // rows written to an export ahead of its query results, in its columns
+   interface CsvRows {
+      long write(Writer out) throws IOException;
+   }
+
+   // a unit of work run against a connection
+   private interface Work<T> {
+      T run(Connection connection) throws SQLException;
+   }
+
+   /*
+    * Runs work on the connection, holding an admission slot. A lost
+    * connection is reopened for the next statement. Idempotent work outside
+    * a transaction is retried after transient errors, up to RETRY_ATTEMPTS
+    * tries with jittered backoff; statements that timed out are not retried.
+    */
+   private <T> T execute(boolean idempotent, Work<T> work) throws SQLException {
+      for (int attempt = 1; ; attempt++) {
+         // no slot is taken inside a transaction, which must not be retried
+         boolean admitted = admit();
+         try {
+            return work.run(connection());
+         } catch (SQLException e) {
+            if (isConnectionLost(e)) {
+               this._broken = true;
+            }
+            if (!idempotent || !admitted || attempt >= RETRY_ATTEMPTS || !isTransient(e)) {
+               throw e;
+            }
+         } finally {
+            this._running = null;
+            release(admitted);
+         }
+         backoff(attempt);
+      }
+   }
+
+   // statements created for work, registered so cancel can reach them
+   private <S extends Statement> S running(S stmt) {
+      this._running = stmt;
+      return stmt;
+   }
+
+   // errors after which the connection is unusable: connection exceptions,
+   // and the server ending the session
+   static boolean isConnectionLost(SQLException e) {
+      String state = e.getSQLState();
+      return state == null ? false : state.startsWith("08") || state.equals("57P01");
+   }
+
+   // errors a retry may not hit again: lost connections, serialization
+   // failures and deadlocks
+   static boolean isTransient(SQLException e) {
+      String state = e.getSQLState();
+      return isConnectionLost(e) || "40001".equals(state) || "40P01".equals(state);
+   }
+
+   // waits a random time before retry attempt + 1
+   static void backoff(int attempt) {
+      long bound = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(attempt, 20));
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
    /**
     * Method to execute an update SQL statement. Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @param params values bound in order to the '?' placeholders of sql
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-      // issues the update instruction
-      stmt.executeUpdate(sql);
-      // close the instruction
-      stmt.close();
+   public int executeUpdate(final String sql, final Object... params) throws SQLException {
+      return execute(false, new Work<Integer>() {
+         public Integer run(Connection connection) throws SQLException {
+            // creates a statement object
+            PreparedStatement stmt = running(prepare(connection, sql, params));
+            // issues the update instruction
+            int rowCount = stmt.executeUpdate();
+            // close the instruction
+            stmt.close();
+            wrote(sql);
+            return rowCount;
+         }
+      });
    }// end executeUpdate
 
+   /*
+    * Takes an admission slot for one statement, unless the open transaction
+    * already holds one; returns whether a slot was taken.
+    */
+   private boolean admit() throws SQLException {
+      if (this._admitted) {
+         return false;
+      }
+      Admission.acquire();
+      return true;
+   }
+
+   private static void release(boolean admitted) {
+      if (admitted) {
+         Admission.release();
+      }
+   }
+
+   /*
+    * Prepares sql with its parameters bound. Parameters are sent with their
+    * Java type (Integer, BigDecimal, Timestamp, Boolean, ...) so the driver can
+    * transfer them in binary; the driver prepares the statement on the server
+    * and reuses it for later calls with the same sql. The statement is
+    * cancelled after STATEMENT_TIMEOUT seconds.
+    */
+   private static PreparedStatement prepare(Connection connection, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement(sql);
+      stmt.setQueryTimeout(STATEMENT_TIMEOUT);
+      for (int i = 0; i < params.length; i++) {
+         stmt.setObject(i + 1, params[i]);
+      }
+      return stmt;
+   }// end prepare
+
+   // a plain statement, cancelled after STATEMENT_TIMEOUT seconds
+   private static Statement createStatement(Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement();
+      stmt.setQueryTimeout(STATEMENT_TIMEOUT);
+      return stmt;
+   }
+
+   /**
+    * Starts a transaction on the connection. Updates issued until
+    * commitTransaction or rollbackTransaction are applied together. The
+    * transaction holds one admission slot until it ends, so its statements
+    * never wait behind other sessions while holding locks.
+    *
+    * @throws java.sql.SQLException when the transaction could not be started
+    */
+   public void beginTransaction() throws SQLException {
+      boolean admitted = admit();
+      try {
+         connection().setAutoCommit(false);
+      } catch (SQLException e) {
+         release(admitted);
+         throw e;
+      }
+      this._admitted |= admitted;
+   }// end beginTransaction
+
+   // gives back the slot held by the transaction that just ended
+   private void endTransaction() {
+      release(this._admitted);
+      this._admitted = false;
+      this._writtenTables.clear();
+   }
+
+   /**
+    * Commits the current transaction and returns to autocommit mode.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commitTransaction() throws SQLException {
+      try {
+         connection().commit();
+         connection().setAutoCommit(true);
+         wrote();
+      } catch (SQLException e) {
+         if (isConnectionLost(e)) {
+            this._broken = true;
+         }
+         throw e;
+      } finally {
+         // reads that ran while the transaction was open saw its old rows
+         QueryCache.SHARED.invalidate(this._writtenTables);
+         if (this._broken || connection().getAutoCommit()) {
+            endTransaction();
+         }
+      }
+   }// end commitTransaction
+
+   /**
+    * Rolls back the current transaction, if any, and returns to autocommit
+    * mode.
+    */
+   public void rollbackTransaction() {
+      try {
+         if (!connection().getAutoCommit()) {
+            connection().rollback();
+            connection().setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         // ignored.
+      } finally {
+         endTransaction();
+      }
+   }// end rollbackTransaction
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
     * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+   public int executeQueryAndPrintResult(final String query, final Object... params) throws SQLException {
+      return execute(true, new Work<Integer>() {
+         public Integer run(Connection connection) throws SQLException {
+            return printResult(running(prepare(connection, query, params)));
+         }
+      });
+   }// end executeQueryAndPrintResult
+
+   // prints the rows stmt returns only once all were read, so a failed try
+   // prints nothing
+   private static int printResult(PreparedStatement stmt) throws SQLException {
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+      ResultSet rs = stmt.executeQuery();
       /*
        ** obtains the metadata object for the returned result set. The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\t");
-         System.out.println();
-         ++rowCount;
-      } // end while
+      List<String> header = new ArrayList<String>();
+      for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+         header.add(rsmd.getColumnName(i));
+      }
+      List<List<String>> rows = readResult(rs);
       stmt.close();
-      return rowCount;
-   }// end executeQuery
+      // output them to standard out, with the header when there are rows
+      if (!rows.isEmpty()) {
+         TableRenderer.print(header, rows);
+      }
+      return rows.size();
+   }// end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
@@ -127,116 +609,904 @@ public class Cafe {
     * a list of records. Each record in turn is a list of attribute values
     *
     * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult(final String query, final Object... params) throws SQLException {
+      return execute(true, new Work<List<List<String>>>() {
+         public List<List<String>> run(Connection connection) throws SQLException {
+            // creates a statement object
+            PreparedStatement stmt = running(prepare(connection, query, params));
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+            List<List<String>> result = readResult(rs);
+            stmt.close();
+            return result;
+         }
+      });
    }// end executeQueryAndReturnResult
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT). This
-    * method issues the query to the DBMS and returns the number of results
+    * Method to execute a read-only query SQL instruction (i.e. SELECT) and
+    * return its results as a list of records. When replicas are configured
+    * (cafe.replicas) the query runs on a replica that has replayed every
+    * write of this session, such as a just placed order, and lags the
+    * primary by at most cafe.replica.maxLagMs. Otherwise, and inside a
+    * transaction, it runs on the primary like executeQueryAndReturnResult.
     *
     * @param query the input query string
-    * @return the number of rows returned
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-      int rowCount = 0;
-      // iterates through the result set and count nuber of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }
+   public List<List<String>> executeReadQuery(final String query, final Object... params) throws SQLException {
+      return onReadConnection(new Work<List<List<String>>>() {
+         public List<List<String>> run(Connection connection) throws SQLException {
+            PreparedStatement stmt = prepare(connection, query, params);
+            try {
+               return readResult(stmt.executeQuery());
+            } finally {
+               stmt.close();
+            }
+         }
+      });
+   }// end executeReadQuery
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to execute a read-only query SQL instruction (i.e. SELECT) and
+    * output its results to standard out, routed like executeReadQuery.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')",
-            sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   public int executeReadQueryAndPrintResult(final String query, final Object... params) throws SQLException {
+      return onReadConnection(new Work<Integer>() {
+         public Integer run(Connection connection) throws SQLException {
+            return printResult(prepare(connection, query, params));
+         }
+      });
+   }// end executeReadQueryAndPrintResult
+
+   /**
+    * Method to execute a read-only query SQL instruction (i.e. SELECT) and
+    * write its results as CSV, after a header line and the rows of before,
+    * to file, gzip compressed when the file name ends in .gz. Rows are
+    * fetched EXPORT_FETCH_SIZE at a time through a cursor and written as they
+    * arrive, so results of any size are exported in constant memory. The
+    * query is routed like executeReadQuery and not cancelled after
+    * STATEMENT_TIMEOUT. The rows go to file.part, which only replaces file
+    * once complete and is deleted when the export fails; a retried query
+    * rewrites it from the start.
+    *
+    * @param file the CSV file to write
+    * @param before the rows written ahead of the query results
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query or to
+    *         write the file
+    */
+   public long executeQueryToCsv(final File file, final CsvRows before, final String query, final Object... params)
+         throws SQLException {
+      return onReadConnection(new Work<Long>() {
+         public Long run(Connection connection) throws SQLException {
+            // the PostgreSQL driver only fetches through a cursor inside a
+            // transaction, which also lets the export outlive the timeout
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+               connection.setAutoCommit(false);
+            }
+            PreparedStatement stmt = null;
+            try {
+               if (autoCommit && backend == Backend.POSTGRES) {
+                  Statement local = connection.createStatement();
+                  try {
+                     local.execute("SET LOCAL statement_timeout = 0");
+                  } finally {
+                     local.close();
+                  }
+               }
+               stmt = prepare(connection, query, params);
+               stmt.setQueryTimeout(0);
+               stmt.setFetchSize(EXPORT_FETCH_SIZE);
+               ResultSet rs = stmt.executeQuery();
+               File partial = new File(file.getPath() + ".part");
+               boolean complete = false;
+               try {
+                  OutputStream stream = new FileOutputStream(partial);
+                  if (file.getName().endsWith(".gz")) {
+                     stream = new GZIPOutputStream(stream, 1 << 16);
+                  }
+                  Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 1 << 16);
+                  long rows;
+                  try {
+                     rows = writeCsv(rs, before, out);
+                  } finally {
+                     out.close();
+                  }
+                  if (file.exists() && !file.delete()) {
+                     throw new IOException("Unable to replace " + file);
+                  }
+                  if (!partial.renameTo(file)) {
+                     throw new IOException("Unable to move " + partial + " to " + file);
+                  }
+                  complete = true;
+                  return rows;
+               } finally {
+                  if (!complete) {
+                     partial.delete();
+                  }
+               }
+            } catch (IOException e) {
+               throw new SQLException("Unable to write " + file + ": " + e.getMessage(), e);
+            } finally {
+               if (stmt != null) {
+                  stmt.close();
+               }
+               if (autoCommit) {
+                  connection.rollback();
+                  connection.setAutoCommit(true);
+               }
+            }
+         }
+      });
+   }// end executeQueryToCsv
+
+   // writes the header, the rows of before and the rows of rs as RFC 4180
+   // CSV, without the padding of char(n) columns
+   private static long writeCsv(ResultSet rs, CsvRows before, Writer out) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      for (int i = 1; i <= numCol; i++) {
+         out.write(i > 1 ? "," : "");
+         out.write(csvField(rsmd.getColumnName(i)));
+      }
+      out.write("\r\n");
+      long rows = before.write(out);
+      while (rs.next()) {
+         for (int i = 1; i <= numCol; i++) {
+            out.write(i > 1 ? "," : "");
+            int type = rsmd.getColumnType(i);
+            String value;
+            if (type == Types.BOOLEAN || type == Types.BIT) {
+               boolean flag = rs.getBoolean(i);
+               value = rs.wasNull() ? null : String.valueOf(flag);
+            } else {
+               value = rs.getString(i);
+               if (value != null && type == Types.CHAR) {
+                  value = value.replaceAll(" +$", "");
+               }
+            }
+            out.write(value == null ? "" : csvField(value));
+         }
+         out.write("\r\n");
+         rows++;
+      }
+      return rows;
+   }
+
+   // writes one row of values, null ones as empty fields
+   static void writeCsvRow(Writer out, List<String> values) throws IOException {
+      for (int i = 0; i < values.size(); i++) {
+         out.write(i > 0 ? "," : "");
+         out.write(values.get(i) == null ? "" : csvField(values.get(i)));
+      }
+      out.write("\r\n");
+   }
+
+   private static String csvField(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+         return value;
+      }
+      return '"' + value.replace("\"", "\"\"") + '"';
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to execute a read-only query SQL instruction (i.e. SELECT)
+    * through the QueryCache: a result cached for the same query and
+    * parameters is returned without asking the database, others are read
+    * on the primary and cached. Results are shared by all sessions, so they
+    * are never read from a replica that could be behind another session's
+    * writes. Inside a transaction the query always runs, and its result is
+    * not cached.
+    *
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the query result as a list of records, not to be modified
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
-   }// end cleanup
+   public List<List<String>> executeCachedQuery(String query, Object... params) throws SQLException {
+      return cachedResult(query, params).rows;
+   }// end executeCachedQuery
 
    /**
-    * The main execution method
+    * Method to execute a read-only query SQL instruction (i.e. SELECT)
+    * through the QueryCache like executeCachedQuery, and output its results
+    * to standard out.
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login
-    *             file>
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public static void main(String[] args) {
-      if (args.length != 3) {
-         System.err.println(
-               "Usage: " +
-                     "java [-classpath <classpath>] " +
-                     Cafe.class.getName() +
-                     " <dbname> <port> <user>");
-         return;
-      } // end if
-      Greeting();
-      Cafe esql = null;
+   public int executeCachedQueryAndPrintResult(String query, Object... params) throws SQLException {
+      QueryCache.Result result = cachedResult(query, params);
+      if (!result.rows.isEmpty()) {
+         TableRenderer.print(result.header, result.rows);
+      }
+      return result.rows.size();
+   }// end executeCachedQueryAndPrintResult
+
+   private QueryCache.Result cachedResult(final String query, final Object... params) throws SQLException {
+      QueryCache cache = QueryCache.SHARED;
+      List<Object> key = Arrays.<Object>asList(query, Arrays.asList(params));
+      QueryCache.Result result = this._admitted ? null : cache.get(key);
+      if (result != null) {
+         return result;
+      }
+      final Set<String> tables = QueryCache.tables(query);
+      long version = cache.version(tables);
+      result = execute(true, new Work<QueryCache.Result>() {
+         public QueryCache.Result run(Connection connection) throws SQLException {
+            PreparedStatement stmt = prepare(connection, query, params);
+            try {
+               ResultSet rs = stmt.executeQuery();
+               ResultSetMetaData rsmd = rs.getMetaData();
+               List<String> header = new ArrayList<String>();
+               for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+                  header.add(rsmd.getColumnName(i));
+               }
+               return new QueryCache.Result(header, readResult(rs), tables);
+            } finally {
+               stmt.close();
+            }
+         }
+      });
+      if (!this._admitted) {
+         cache.put(key, result, version);
+      }
+      return result;
+   }
+
+   /*
+    * Runs read on a replica that is current enough for this session, falling
+    * back to the primary when there is none or the replica fails.
+    */
+   private <T> T onReadConnection(Work<T> read) throws SQLException {
+      boolean admitted = admit();
       try {
-         // use postgres JDBC driver.
-         Class.forName("org.postgresql.Driver").newInstance();
-         // instantiate the Cafe object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Cafe(dbname, dbport, user, "");
-         boolean keepon = true;
-         while (keepon) {
-            // These are sample SQL statements
+         if (!this._replicas.isEmpty() && admitted) {
+            long lsn = writeLsn();
+            for (int tried = 0; tried < this._replicas.size(); tried++) {
+               Replica replica = this._replicas.get(this._nextReplica++ % this._replicas.size());
+               Connection connection = replica.connectionAtLeast(lsn);
+               if (connection == null) {
+                  continue;
+               }
+               try {
+                  return read.run(connection);
+               } catch (SQLException e) {
+                  replica.failed(e);
+                  break;
+               }
+            }
+         }
+      } finally {
+         release(admitted);
+      }
+      return execute(true, read);
+   }
+
+   // notes a write, so later reads wait for replicas to replay it
+   private void wrote() {
+      if (!this._replicas.isEmpty()) {
+         this._writeLsnStale = true;
+      }
+   }
+
+   // notes a write by sql, also dropping the cached results of the table it
+   // writes, now and again when its transaction commits
+   private void wrote(String sql) {
+      wrote();
+      Set<String> tables = QueryCache.written(sql);
+      QueryCache.SHARED.invalidate(tables);
+      if (this._admitted) {
+         this._writtenTables.addAll(tables);
+      }
+   }
+
+   // the primary WAL position after this session's last write
+   private long writeLsn() throws SQLException {
+      if (this._writeLsnStale) {
+         Statement stmt = createStatement(connection());
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()::text");
+            rs.next();
+            this._writeLsn = Replica.parseLsn(rs.getString(1));
+         } finally {
+            stmt.close();
+         }
+         this._writeLsnStale = false;
+      }
+      return this._writeLsn;
+   }
+
+   /*
+    * Saves the rows of a result set as a list of records, each record a list
+    * of attribute values.
+    */
+   private static List<List<String>> readResult(ResultSet rs) throws SQLException {
+      /*
+       ** obtains the metadata object for the returned result set. The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      // iterates through the result set and saves the data returned by the query.
+      // booleans are returned as t/f, as PostgreSQL prints them, whatever the backend
+      boolean[] isBoolean = new boolean[numCol + 1];
+      for (int i = 1; i <= numCol; ++i)
+         isBoolean[i] = rsmd.getColumnType(i) == Types.BOOLEAN || rsmd.getColumnType(i) == Types.BIT;
+      List<List<String>> result = new ArrayList<List<String>>();
+      while (rs.next()) {
+         List<String> record = new ArrayList<String>();
+         for (int i = 1; i <= numCol; ++i) {
+            if (isBoolean[i]) {
+               boolean value = rs.getBoolean(i);
+               record.add(rs.wasNull() ? null : value ? "t" : "f");
+            } else {
+               record.add(rs.getString(i));
+            }
+         }
+         result.add(record);
+      } // end while
+      return result;
+   }// end readResult
+
+   /**
+    * Method to execute several independent queries in a single round trip.
+    * The queries are sent to the DBMS as one prepared batch on this
+    * connection, with their parameters bound, and their results read back in
+    * order. Drivers that cannot return several result sets get the queries
+    * one at a time instead.
+    *
+    * @param queries the input query strings, none may contain a ';'
+    * @param params for each query, the values bound in order to its '?'
+    *        placeholders; queries past the end of params bind none
+    * @return one result per query, each as a list of records
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public List<List<List<String>>> executeQueriesPipelined(final String[] queries, Object[]... params)
+         throws SQLException {
+      if (!connection().getMetaData().supportsMultipleResultSets()) {
+         List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+         for (int i = 0; i < queries.length; i++) {
+            results.add(executeQueryAndReturnResult(queries[i], i < params.length ? params[i] : new Object[0]));
+         }
+         return results;
+      }
+      final StringBuilder batch = new StringBuilder();
+      final List<Object> values = new ArrayList<Object>();
+      for (int i = 0; i < queries.length; i++) {
+         batch.append(queries[i]).append(";\n");
+         if (i < params.length) {
+            values.addAll(Arrays.asList(params[i]));
+         }
+      }
+      return execute(true, new Work<List<List<List<String>>>>() {
+         public List<List<List<String>>> run(Connection connection) throws SQLException {
+            List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+            PreparedStatement stmt = running(prepare(connection, batch.toString(), values.toArray()));
+            try {
+               boolean isResult = stmt.execute();
+               while (results.size() < queries.length) {
+                  if (isResult) {
+                     results.add(readResult(stmt.getResultSet()));
+                  } else if (stmt.getUpdateCount() == -1) {
+                     throw new SQLException("Expected " + queries.length + " results, got " + results.size());
+                  }
+                  isResult = stmt.getMoreResults();
+               }
+            } finally {
+               stmt.close();
+            }
+            return results;
+         }
+      });
+   }// end executeQueriesPipelined
+
+   /**
+    * Method to execute a query SQL instruction (i.e. SELECT) in the
+    * background. The query runs on a dedicated executor (cafe.async.threads
+    * threads, default 4) where each thread owns its own connection, so
+    * independent queries can overlap with each other and with this
+    * connection.
+    *
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the pending query result as a list of records, completed
+    *         exceptionally with the SQLException when the query failed
+    */
+   public CompletableFuture<List<List<String>>> executeQueryAsync(final String query, final Object... params) {
+      return CompletableFuture.supplyAsync(new Supplier<List<List<String>>>() {
+         public List<List<String>> get() {
+            try {
+               return queryOnAsyncConnection(query, params);
+            } catch (SQLException e) {
+               throw new CompletionException(e);
+            }
+         }
+      }, asyncExecutor());
+   }// end executeQueryAsync
+
+   // runs query on the calling executor thread's connection, retried like
+   // the reads of execute
+   private List<List<String>> queryOnAsyncConnection(String query, Object[] params) throws SQLException {
+      for (int attempt = 1; ; attempt++) {
+         Admission.acquire();
+         try {
+            PreparedStatement stmt = prepare(asyncConnection(), query, params);
+            try {
+               return readResult(stmt.executeQuery());
+            } finally {
+               stmt.close();
+            }
+         } catch (SQLException e) {
+            if (isConnectionLost(e)) {
+               dropAsyncConnection();
+            }
+            if (attempt >= RETRY_ATTEMPTS || !isTransient(e)) {
+               throw e;
+            }
+         } finally {
+            Admission.release();
+         }
+         backoff(attempt);
+      }
+   }
+
+   /**
+    * Starts loading the full menu in the background, so the first menu
+    * screen of the session is shown without a round trip.
+    */
+   public void prefetchMenu() {
+      this._prefetchedMenu = executeQueryAsync(FULL_MENU).thenApply(
+            new Function<List<List<String>>, List<List<String>>>() {
+               public List<List<String>> apply(List<List<String>> menu) {
+                  Startup.mark("menu prefetched");
+                  return menu;
+               }
+            });
+   }// end prefetchMenu
+
+   /**
+    * Loads the logins and phone numbers of all users into the UserIndex in
+    * the background, once per process.
+    */
+   public void prefetchUserIndex() {
+      synchronized (UserIndex.class) {
+         if (UserIndex.loaded == null) {
+            UserIndex.loaded = executeQueryAsync("SELECT login, phoneNum FROM Users").thenApply(
+                  new Function<List<List<String>>, UserIndex>() {
+                     public UserIndex apply(List<List<String>> users) {
+                        return new UserIndex(users);
+                     }
+                  });
+         }
+      }
+   }// end prefetchUserIndex
+
+   /**
+    * Returns the full menu. The menu prefetched at startup is used once if it
+    * has arrived, unless the menu was changed since; otherwise, and for later
+    * calls, the menu is read through the query cache.
+    *
+    * @return the Menu rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> fullMenu() throws SQLException {
+      List<List<String>> menu = ready(this._prefetchedMenu);
+      this._prefetchedMenu = null;
+      if (menu != null) {
+         return menu;
+      }
+      return executeCachedQuery(FULL_MENU);
+   }// end fullMenu
+
+   /**
+    * Drops the prefetched menu after the menu was changed.
+    */
+   public void invalidateMenu() {
+      this._prefetchedMenu = null;
+   }// end invalidateMenu
+
+   /**
+    * Starts loading the type and id of a user who just logged in, so the
+    * screens that need them do not wait for the database.
+    *
+    * @param login the user's login
+    */
+   public void prefetchUserType(final String login) {
+      if (this._userTypes.containsKey(login) || this._pendingUserTypes.containsKey(login)) {
+         return;
+      }
+      final CompletableFuture<List<List<String>>> pending =
+            executeQueryAsync("SELECT type, userid FROM Users WHERE login = ?", login);
+      this._pendingUserTypes.put(login, pending);
+      pending.thenAccept(new Consumer<List<List<String>>>() {
+         public void accept(List<List<String>> result) {
+            // unless the user was changed while it was loading
+            if (_pendingUserTypes.remove(login, pending)) {
+               rememberUser(login, result);
+            }
+         }
+      });
+   }// end prefetchUserType
+
+   /**
+    * Returns the type of a user (Customer, Employee or Manager). Types are
+    * cached for the session once read; a type still loading in the
+    * background is read again rather than waited for.
+    *
+    * @param login the user's login
+    * @return the user's type, or null when there is no such user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String getUserType(String login) throws SQLException {
+      String type = this._userTypes.get(login);
+      if (type != null) {
+         return type;
+      }
+      rememberUser(login, executeCachedQuery("SELECT type, userid FROM Users WHERE login = ?", login));
+      return this._userTypes.get(login);
+   }// end getUserType
+
+   // caches the type and id of a user from a (type, userid) result
+   private void rememberUser(String login, List<List<String>> result) {
+      if (!result.isEmpty()) {
+         this._userIds.put(login, Integer.valueOf(result.get(0).get(1).trim()));
+         this._userTypes.put(login, result.get(0).get(0).replaceAll(" ", ""));
+      }
+   }
+
+   /**
+    * Returns the userid orders refer to a user by. Ids are cached for the
+    * session once read.
+    *
+    * @param login the user's login
+    * @return the user's id, or null when there is no such user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Integer getUserId(String login) throws SQLException {
+      if (!this._userIds.containsKey(login)) {
+         getUserType(login);
+      }
+      return this._userIds.get(login);
+   }// end getUserId
+
+   /**
+    * Drops the cached type and id of a user after it was changed.
+    *
+    * @param login the user's login
+    */
+   public void invalidateUserType(String login) {
+      this._userTypes.remove(login);
+      this._userIds.remove(login);
+      this._pendingUserTypes.remove(login);
+   }// end invalidateUserType
+
+   // the result of a background load if it has completed, or null while it
+   // is running, when there is none or when it failed; never waits
+   static <T> T ready(CompletableFuture<T> pending) {
+      if (pending == null || !pending.isDone() || pending.isCompletedExceptionally()) {
+         return null;
+      }
+      return pending.join();
+   }
+
+   private synchronized ExecutorService asyncExecutor() {
+      if (this._asyncExecutor == null) {
+         this._asyncExecutor = Executors.newFixedThreadPool(Integer.getInteger("cafe.async.threads", 4),
+               new ThreadFactory() {
+                  private int count = 0;
+
+                  public synchronized Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "cafe-async-" + (++count));
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      }
+      return this._asyncExecutor;
+   }
+
+   // the calling executor thread's connection, opened on its first query
+   private Connection asyncConnection() throws SQLException {
+      Connection connection = this._asyncConnection.get();
+      if (connection == null) {
+         // the main connection must be up first, the embedded database is
+         // created through it
+         try {
+            firstConnection();
+         } catch (SQLException e) {
+            // the database was down at startup, try it again below
+         }
+         connection = DriverManager.getConnection(this._url, backend.properties(this._user, this._passwd));
+         this._asyncConnection.set(connection);
+         synchronized (this._asyncConnections) {
+            this._asyncConnections.add(connection);
+         }
+      }
+      return connection;
+   }
+
+   // closes the calling executor thread's connection after it was lost
+   private void dropAsyncConnection() {
+      Connection connection = this._asyncConnection.get();
+      this._asyncConnection.remove();
+      if (connection != null) {
+         synchronized (this._asyncConnections) {
+            this._asyncConnections.remove(connection);
+         }
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+   /**
+    * Method to execute one update SQL statement for many rows in a single
+    * batch, sent to the DBMS in one round trip.
+    *
+    * @param sql the input SQL string
+    * @param rows the values bound to the '?' placeholders of sql, one array per row
+    * @return the number of rows affected per row of the batch
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch(final String sql, final List<Object[]> rows) throws SQLException {
+      return execute(false, new Work<int[]>() {
+         public int[] run(Connection connection) throws SQLException {
+            PreparedStatement stmt = running(prepare(connection, sql, new Object[0]));
+            try {
+               for (Object[] row : rows) {
+                  for (int i = 0; i < row.length; i++) {
+                     stmt.setObject(i + 1, row[i]);
+                  }
+                  stmt.addBatch();
+               }
+               int[] rowCounts = stmt.executeBatch();
+               wrote(sql);
+               return rowCounts;
+            } finally {
+               stmt.close();
+            }
+         }
+      });
+   }// end executeBatch
+
+   /**
+    * Returns the favorite items of a user. Favorites are cached for the
+    * session once read.
+    *
+    * @param login the user's login
+    * @return the names of the user's favorite items, sorted
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> getFavorites(String login) throws SQLException {
+      List<String> favorites = this._favorites.get(login);
+      if (favorites == null) {
+         favorites = new ArrayList<String>();
+         for (List<String> row : executeQueryAndReturnResult(
+               "SELECT M.itemName FROM FavoriteItems F, Menu M WHERE F.userid = ? AND M.itemid = F.itemid " +
+                     "ORDER BY M.itemName", getUserId(login))) {
+            favorites.add(row.get(0).trim());
+         }
+         this._favorites.put(login, favorites);
+      }
+      return favorites;
+   }// end getFavorites
+
+   /**
+    * Adds a menu item to a user's favorites.
+    *
+    * @param login the user's login
+    * @param itemName the menu item
+    * @return false when the item is not on the menu or already a favorite
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean addFavorite(String login, String itemName) throws SQLException {
+      if (getFavorites(login).contains(itemName)) {
+         return false;
+      }
+      int rows = executeUpdate("INSERT INTO FavoriteItems (userid, itemid) " +
+            "SELECT ?, itemid FROM Menu WHERE itemName = ?", getUserId(login), itemName);
+      invalidateFavorites(login);
+      return rows > 0;
+   }// end addFavorite
+
+   /**
+    * Removes an item from a user's favorites.
+    *
+    * @param login the user's login
+    * @param itemName the favorite item
+    * @return false when the item was not a favorite
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean removeFavorite(String login, String itemName) throws SQLException {
+      int rows = executeUpdate("DELETE FROM FavoriteItems WHERE userid = ? " +
+            "AND itemid = (SELECT itemid FROM Menu WHERE itemName = ?)", getUserId(login), itemName);
+      invalidateFavorites(login);
+      return rows > 0;
+   }// end removeFavorite
+
+   /**
+    * Drops the cached favorites of a user, or of every user when login is
+    * null, after they may have changed.
+    *
+    * @param login the user's login, or null
+    */
+   public void invalidateFavorites(String login) {
+      if (login == null) {
+         this._favorites.clear();
+      } else {
+         this._favorites.remove(login);
+      }
+   }// end invalidateFavorites
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT). This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @param params values bound in order to the '?' placeholders of query
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(final String query, final Object... params) throws SQLException {
+      return execute(true, new Work<Integer>() {
+         public Integer run(Connection connection) throws SQLException {
+            // creates a statement object
+            PreparedStatement stmt = running(prepare(connection, query, params));
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery();
+            int rowCount = 0;
+            // iterates through the result set and count nuber of results.
+            while (rs.next()) {
+               rowCount++;
+            } // end while
+            stmt.close();
+            return rowCount;
+         }
+      });
+   }
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(final String sequence) throws SQLException {
+      // currval belongs to the session, a new connection cannot answer it
+      return execute(false, new Work<Integer>() {
+         public Integer run(Connection connection) throws SQLException {
+            Statement stmt = running(createStatement(connection));
+            try {
+               ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')",
+                     sequence));
+               if (rs.next())
+                  return rs.getInt(1);
+               return -1;
+            } finally {
+               stmt.close();
+            }
+         }
+      });
+   }
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup() {
+      try {
+         if (this._asyncExecutor != null) {
+            this._asyncExecutor.shutdownNow();
+         } // end if
+         synchronized (this._asyncConnections) {
+            for (Connection connection : this._asyncConnections) {
+               connection.close();
+            }
+            this._asyncConnections.clear();
+         }
+         for (Replica replica : this._replicas) {
+            replica.close();
+         }
+         // without reopening a lost connection just to close it
+         (this._reconnected != null ? this._reconnected : firstConnection()).close();
+      } catch (SQLException e) {
+         // ignored.
+      } // end try
+   }// end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login
+    *             file>
+    */
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     Cafe.class.getName() +
+                     " <dbname> <port> <user>");
+         return;
+      } // end if
+      Startup.mark("main");
+      Greeting();
+      Cafe esql = null;
+      try {
+         // instantiate the Cafe object, it connects in the background
+         // using the JDBC driver of the configured backend.
+         String dbname = args[0];
+         String dbport = args[1];
+         String user = args[2];
+         esql = new Cafe(dbname, dbport, user, "");
+         if (backend == Backend.EMBEDDED) {
+            // the embedded database is created in this process, there is
+            // nothing to run against if that failed
+            try {
+               esql.connection();
+            } catch (SQLException e) {
+               System.exit(-1);
+            }
+         }
+         // on Ctrl-C, stop the server working on a statement nobody waits for
+         final Cafe session = esql;
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               session.cancel();
+            }
+         });
+         esql.prefetchMenu();
+         esql.prefetchUserIndex();
+         runSession(esql);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      } finally {
+         // make sure to cleanup the created table and close the connection.
+         try {
+            if (esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup();
+               System.out.println("Done\n\nBye !");
+               Startup.report();
+            } // end if
+         } catch (Exception e) {
+            // ignored.
+         } // end try
+      } // end try
+   }// end main
+
+   /*
+    * Runs the menus of one user session until they exit, or until their
+    * input ends.
+    **/
+   public static void runSession(Cafe esql) {
+      try {
+         boolean keepon = true;
+         while (keepon) {
+            // These are sample SQL statements
+            Startup.mark("first menu");
             System.out.println("MAIN MENU");
             System.out.println("---------");
             System.out.println("1. Create user");
@@ -266,6 +1536,7 @@ public class Cafe {
                   System.out.println("2. Update Profile");
                   System.out.println("3. Place a Order");
                   System.out.println("4. Update a Order");
+                  System.out.println("5. Sales reports");
                   System.out.println(".........................");
                   System.out.println("9. Log out");
                   switch (readChoice()) {
@@ -282,6 +1553,9 @@ public class Cafe {
                      case 4:
                         UpdateOrder(esql, authorisedUser);
                         break;
+                     case 5:
+                        SalesReports(esql, authorisedUser);
+                        break;
                      case 9:
                         usermenu = false;
                         break;
@@ -292,21 +1566,10 @@ public class Cafe {
                }
             }
          } // end while
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
-      } finally {
-         // make sure to cleanup the created table and close the connection.
-         try {
-            if (esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup();
-               System.out.println("Done\n\nBye !");
-            } // end if
-         } catch (Exception e) {
-            // ignored.
-         } // end try
-      } // end try
-   }// end main
+      } catch (EndOfInput e) {
+         // nothing left to read, the session is over
+      }
+   }// end runSession
 
    public static void Greeting() {
       System.out.println(
@@ -341,22 +1604,59 @@ public class Cafe {
 
    public static void CreateUser(Cafe esql){
       try{
+         // a taken login or phone number is reported as soon as it is typed
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
+         if (loginTaken(esql, login)) {
+            System.out.println("The login you choose already exists, please re-try and choose a new one.");
+            return;
+         }
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
-         
-    String type="Customer";
-    String favItems="";
- String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
-         esql.executeUpdate(query);
+         if (phoneTaken(esql, phone)) {
+            System.out.println("The phone number you choose already exists, please re-try and choose a new one.");
+            return;
+         }
+
+         String type="Customer";
+         String query = "INSERT INTO Users (phoneNum, login, password, type) VALUES (?, ?, ?, ?)";
+         try {
+            esql.executeUpdate(query, phone, login, password, type);
+         } catch (SQLException e) {
+            // taken by another till in the meantime
+            if ("23505".equals(e.getSQLState())) {
+               System.out.println("The login or phone number you choose already exists, please re-try and choose new ones.");
+               return;
+            }
+            throw e;
+         } finally {
+            UserIndex.add(login, phone);
+         }
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }// end CreateUser
+
+   /*
+    * Whether a login is in use. Logins the user index has never seen are
+    * free without asking the database; the others are looked up, since the
+    * index also holds logins that were changed since.
+    **/
+   public static boolean loginTaken(Cafe esql, String login) throws SQLException {
+      return UserIndex.mightHaveLogin(login)
+            && esql.executeQuery("SELECT login FROM Users WHERE login = ?", login) > 0;
+   }
+
+   /*
+    * Whether a phone number is in use, checked like loginTaken
+    **/
+   public static boolean phoneTaken(Cafe esql, String phone) throws SQLException {
+      return UserIndex.mightHavePhone(phone)
+            && esql.executeQuery("SELECT phoneNum FROM Users WHERE phoneNum = ?", phone) > 0;
+   }
    /*
     * Check log in credentials for an existing user
     * 
@@ -369,10 +1669,19 @@ public class Cafe {
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
- if (userNum > 0)
-return login;
+         // only failed attempts are charged, so logging in does not use up
+         // the attempts of a login, and guessing at it cannot go on
+         if (!RateLimiter.LOGIN.hasToken(login)) {
+            System.out.println("Too many failed login attempts for " + login + ", please wait a minute and try again.");
+            return null;
+         }
+         String query = "SELECT * FROM USERS WHERE login = ? AND password = ?";
+         int userNum = esql.executeQuery(query, login, password);
+ if (userNum > 0) {
+            esql.prefetchUserType(login);
+            return login;
+         }
+         RateLimiter.LOGIN.tryAcquire(login);
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -383,25 +1692,26 @@ return login;
 
    public static void Menu(Cafe esql, String login) {
 
-      String query, loginType;
+      String query, loginType = null;
       List<List<String>> result = new ArrayList<List<String>>();
 
       // run query to get the type of current user
       try {
 
-         // query to get the typefrom the current user
-         query = String.format("SELECT type FROM Users WHERE login = '%s'", login);
-         result = esql.executeQueryAndReturnResult(query);
+         // get the type of the current user, cached for the session
+         loginType = esql.getUserType(login);
 
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
 
+      if (loginType == null) {
+         System.out.println("Unable to look up your account, please re-try or contact IT");
+         return;
+      }
+
       boolean inMenu = false;
 
-  	loginType = result.get(0).get(0);
-	loginType = loginType.replaceAll(" ", "");
-      	
       if (!loginType.equals("Manager")) {
 
          do {
@@ -483,21 +1793,13 @@ return login;
       List<List<String>> result = new ArrayList<List<String>>();
 
       try{
-         String query;
-         query = String.format("SELECT * FROM Menu");
-
-         result = esql.executeQueryAndReturnResult(query);
+         result = esql.fullMenu();
 
       }catch(Exception e){
          System.out.println("Unable to get menu, please contact developers");
       }
 
-      for(int i = 0; i < result.size(); i++){
-         for(int j = 0; j < result.get(i).size(); j++){
-               System.out.printf(result.get(i).get(j) + " ");
-         }
-         System.out.println();
-      }
+      TableRenderer.print(MENU_HEADER, result);
 
    }
 
@@ -521,19 +1823,14 @@ return login;
 
          try {
             String query;
-            query = String.format("SELECT * FROM Menu WHERE itemName = '%s'", itemName);
-            if (esql.executeQuery(query) == 0) {
+            query = FULL_MENU + " WHERE itemName = ?";
+            result = esql.executeCachedQuery(query, itemName);
+            if (result.isEmpty()) {
                System.out.println("This item does not exist in the menu.");
             } else {
-               // execute the query to print out nicely into output stream
-               result = esql.executeQueryAndReturnResult(query);
+               // print the result out nicely into output stream
 
-               for(int i = 0; i < result.size(); i++){
-                  for(int j = 0; j < result.get(i).size(); j++){
-                        System.out.printf(result.get(i).get(j) + " ");
-                  }
-                  System.out.println();
-               }
+               TableRenderer.print(MENU_HEADER, result);
 
             }
          } catch (Exception e) {
@@ -581,19 +1878,14 @@ return login;
 
          try {
             String query;
-            query = String.format("SELECT * FROM Menu WHERE type = '%s'", itemType);
-            if (esql.executeQuery(query) == 0) {
+            query = FULL_MENU + " WHERE type = ?";
+            result = esql.executeCachedQuery(query, itemType);
+            if (result.isEmpty()) {
                System.out.println("This item does not exist in the menu.");
             } else {
-               // execute the query again to print out nicely into output stream
-               result = esql.executeQueryAndReturnResult(query);
+               // print the result out nicely into output stream
 
-               for(int i = 0; i < result.size(); i++){
-                  for(int j = 0; j < result.get(i).size(); j++){
-                        System.out.printf(result.get(i).get(j) + " ");
-                  }
-                  System.out.println();
-               }
+               TableRenderer.print(MENU_HEADER, result);
             }
          } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -647,17 +1939,16 @@ return login;
          try {
 
             String query;
-            query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", itemName);
+            query = "SELECT itemName FROM Menu WHERE itemName = ?";
 
-            if (esql.executeQuery(query) > 0) {
+            if (esql.executeQuery(query, itemName) > 0) {
                // check if item is in menu
                System.out.println("Item is already in menu! Please retry");
             } else {
 
-               query = String.format(
-                     "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')",
-                     itemName, itemType, itemPrice, itemDescription, itemURL);
-               esql.executeUpdate(query);
+               query = "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)";
+               esql.executeUpdate(query, itemName, itemType, new BigDecimal(itemPrice.trim()), itemDescription, itemURL);
+               esql.invalidateMenu();
                System.out.println("New item added successfully!");
             }
 
@@ -704,8 +1995,10 @@ return login;
          try {
             String query;
 
-            query = String.format("DELETE FROM Menu WHERE itemName = '%s'", itemName);
-            esql.executeUpdate(query);
+            query = "DELETE FROM Menu WHERE itemName = ?";
+            esql.executeUpdate(query, itemName);
+            esql.invalidateMenu();
+            esql.invalidateFavorites(null);
             System.out.println("Item deleted successfully!");
 
          } catch (Exception e) {
@@ -751,8 +2044,8 @@ return login;
          }
 
          try {
-            String query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", itemName);
-            ifExists = esql.executeQuery(query);
+            String query = "SELECT itemName FROM Menu WHERE itemName = ?";
+            ifExists = esql.executeQuery(query, itemName);
          } catch (Exception e) {
             System.out.println("Error getting item, please input an exisitng item, or item does not exist");
          }
@@ -839,16 +2132,18 @@ return login;
 
       try {
          String query;
-         query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", newName);
+         query = "SELECT itemName FROM Menu WHERE itemName = ?";
 
-         if (esql.executeQuery(query) > 0) {
+         if (esql.executeQuery(query, newName) > 0) {
             System.out.println("The name you choose already exists, please re-try and choose a new one.");
 
             return itemName;
          } else {
 
-            query = String.format("UPDATE Menu SET itemName = '%s' WHERE itemName = '%s'", newName, itemName);
-            esql.executeUpdate(query);
+            query = "UPDATE Menu SET itemName = ? WHERE itemName = ?";
+            esql.executeUpdate(query, newName, itemName);
+            esql.invalidateMenu();
+            esql.invalidateFavorites(null);
             System.out.println("Name updated successfully!");
          }
 
@@ -879,8 +2174,9 @@ return login;
 
       try {
          String query;
-         query = String.format("UPDATE Menu SET type = '%s' WHERE itemName = '%s'", newType, itemName);
-         esql.executeUpdate(query);
+         query = "UPDATE Menu SET type = ? WHERE itemName = ?";
+         esql.executeUpdate(query, newType, itemName);
+         esql.invalidateMenu();
          System.out.printf("Typed updated successfully for item [%s]\n", itemName);
 
       } catch (Exception e) {
@@ -909,8 +2205,9 @@ return login;
 
       try {
          String query;
-         query = String.format("UPDATE Menu SET price = '%s' WHERE itemName = '%s'", newPrice, itemName);
-         esql.executeUpdate(query);
+         query = "UPDATE Menu SET price = ? WHERE itemName = ?";
+         esql.executeUpdate(query, new BigDecimal(newPrice.trim()), itemName);
+         esql.invalidateMenu();
          System.out.printf("Price updated successfully for item [%s]\n", itemName);
 
       } catch (Exception e) {
@@ -936,8 +2233,9 @@ return login;
 
       try {
          String query;
-         query = String.format("UPDATE Menu SET description = '%s' WHERE itemName = '%s'", newDes, itemName);
-         esql.executeUpdate(query);
+         query = "UPDATE Menu SET description = ? WHERE itemName = ?";
+         esql.executeUpdate(query, newDes, itemName);
+         esql.invalidateMenu();
          System.out.printf("Description updated successfully for item [%s]\n", itemName);
 
       } catch (Exception e) {
@@ -963,8 +2261,9 @@ return login;
 
       try {
          String query;
-         query = String.format("UPDATE Menu SET imageURL = '%s' WHERE itemName = '%s'", newURL, itemName);
-         esql.executeUpdate(query);
+         query = "UPDATE Menu SET imageURL = ? WHERE itemName = ?";
+         esql.executeUpdate(query, newURL, itemName);
+         esql.invalidateMenu();
          System.out.printf("imageURL updated successfully for item [%s]\n", itemName);
 
       } catch (Exception e) {
@@ -975,24 +2274,26 @@ return login;
 
    public static String UpdateProfile(Cafe esql, String login) {
 
-      String query, loginType;
+      String query, loginType = null;
       List<List<String>> result = new ArrayList<List<String>>();
   
 
       // run query to get the type of current user
       try {
 
-         // query to get the typefrom the current user
-         query = String.format("SELECT type FROM Users WHERE login = '%s'", login);
-         result = esql.executeQueryAndReturnResult(query);
+         // get the type of the current user, cached for the session
+         loginType = esql.getUserType(login);
 
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
 
+      if (loginType == null) {
+         System.out.println("Unable to look up your account, please re-try or contact IT");
+         return login;
+      }
+
       boolean inMenu = false;
-      loginType = result.get(0).get(0);
- 	   loginType = loginType.replaceAll(" ", "");
 
       if (!loginType.equals("Manager")) {
 
@@ -1045,7 +2346,8 @@ return login;
             System.out.println("4. Favorite Items");
             System.out.println("5. Change type");
             System.out.println("6. Modify other user");
-            System.out.println("7. Go back to Main Menu");
+            System.out.println("7. Batch update users from a file");
+            System.out.println("8. Go back to Main Menu");
             switch (readChoice()) {
                case 1:
                   userName = updateLogin(esql, login);
@@ -1066,6 +2368,9 @@ return login;
                   managerUpdateUser(esql, userName);
                   break;
                case 7:
+                  batchUpdateUsers(esql);
+                  break;
+               case 8:
                   inMenu = false;
                   break;
                default:
@@ -1080,850 +2385,3812 @@ return login;
 
    }
 
-   public static String updateLogin(Cafe esql, String login) {
+   public static String updateLogin(Cafe esql, String login) {
+
+      String newLogin;
+      while (true) {
+         try {
+
+            System.out.printf("Please enter new user login for [%s]\n", login);
+            newLogin = in.readLine();
+            break;
+         } catch (Exception e) {
+            System.out.println("Please enter a valid login. ");
+            continue;
+         }
+      }
+
+      // a single row change: orders and favorites refer to the userid, and
+      // the unique login reports a collision missed by loginTaken
+      try {
+         if (loginTaken(esql, newLogin)) {
+            System.out.println("The login you choose already exists, please re-try and choose a new one.");
+            return login;
+         }
+         String query = "UPDATE Users SET login = ? WHERE login = ?";
+         try {
+            esql.executeUpdate(query, newLogin, login);
+         } finally {
+            UserIndex.add(newLogin, null);
+         }
+         esql.invalidateFavorites(login);
+         esql.invalidateUserType(login);
+         esql.invalidateUserType(newLogin);
+         System.out.println("Login updated successfully!");
+      } catch (SQLException e) {
+         if ("23505".equals(e.getSQLState())) {
+            System.out.println("The login you choose already exists, please re-try and choose a new one.");
+         } else {
+            System.out.println("Error updating User, please re-try or contact IT");
+         }
+         return login;
+      }
+
+      return newLogin;
+
+   }
+
+   public static void updatePhoneNumber(Cafe esql, String login) {
+
+      String newPhoneNumber;
+      while (true) {
+         try {
+
+            System.out.printf("Please enter new user phone number for [%s]\n", login);
+
+            // TODO add line where it shows the user current phone number
+            newPhoneNumber = in.readLine();
+            break;
+         } catch (Exception e) {
+            System.out.println("Please enter a valid phone number.");
+            continue;
+         }
+      }
+
+      // the unique phone number reports a collision missed by phoneTaken
+      try {
+         if (phoneTaken(esql, newPhoneNumber)) {
+            System.out.println("The phone number you choose already exists, please re-try and choose a new one.");
+            return;
+         }
+         String query = "UPDATE Users SET phoneNum = ? WHERE login = ?";
+         try {
+            esql.executeUpdate(query, newPhoneNumber, login);
+         } finally {
+            UserIndex.add(null, newPhoneNumber);
+         }
+         System.out.printf("Phone number updated successfully for user [%s]!\n", login);
+      } catch (SQLException e) {
+         if ("23505".equals(e.getSQLState())) {
+            System.out.println("The phone number you choose already exists, please re-try and choose a new one.");
+         } else {
+            System.out.println("Error updating User, please re-try or contact IT");
+         }
+      }
+
+   }
+
+   public static void updatePassword(Cafe esql, String login) {
+
+      String newPassword, passwordTwo;
+      while (true) {
+         try {
+
+            System.out.printf("Please enter new user password for [%s]\n", login);
+            // TODO add line where it shows the user current phone number
+            newPassword = in.readLine();
+
+            System.out.println("Please re-type password");
+            passwordTwo = in.readLine();
+
+            if (!passwordTwo.equals(newPassword)) {
+               throw new SQLException("Passwords do not match, please re-type!");
+            }
+
+            break;
+         } catch (Exception e) {
+            System.out.println("Please enter a valid password.");
+            continue;
+         }
+      }
+
+      try {
+
+         String query;
+         query = "UPDATE Users SET password = ? WHERE login = ?";
+         esql.executeUpdate(query, newPassword, login);
+         System.out.printf("Password updated successfully for user [%s]\n!", login);
+
+      } catch (Exception e) {
+         System.out.println("Error updating User, please re-try or contact IT");
+      }
+   }
+
+   public static void updateFavItems(Cafe esql, String login) {
+
+      boolean inMenu = true;
+      while (inMenu) {
+
+         try {
+            List<String> favorites = esql.getFavorites(login);
+            System.out.printf("Favorite items for [%s]: %s\n", login,
+                  favorites.isEmpty() ? "none" : String.join(", ", favorites));
+         } catch (Exception e) {
+            System.out.println("Unable to get favorite items, please re-try or contact IT");
+            return;
+         }
+
+         System.out.println("1. Add a favorite item");
+         System.out.println("2. Remove a favorite item");
+         System.out.println("3. Go back");
+         int choice = readChoice();
+         if (choice == 3) {
+            inMenu = false;
+            continue;
+         } else if (choice != 1 && choice != 2) {
+            System.out.println("Please enter a valid choice 1 - 3");
+            continue;
+         }
+
+         String itemName;
+         try {
+            System.out.println("Please enter the menu item name");
+            itemName = in.readLine();
+         } catch (Exception e) {
+            System.out.println("Please input a valid input");
+            continue;
+         }
+
+         try {
+            if (choice == 1) {
+               if (esql.addFavorite(login, itemName)) {
+                  System.out.printf("[%s] added to the favorite items!\n", itemName);
+               } else {
+                  System.out.println("That item is not on the menu or is already a favorite.");
+               }
+            } else {
+               if (esql.removeFavorite(login, itemName)) {
+                  System.out.printf("[%s] removed from the favorite items!\n", itemName);
+               } else {
+                  System.out.println("That item is not a favorite.");
+               }
+            }
+         } catch (Exception e) {
+            System.out.println("Error updating User, please re-try or contact IT");
+         }
+      }
+
+   }
+
+   public static void updateType(Cafe esql, String login) {
+
+      String newType = null;
+      String input;
+
+      System.out.println(
+            "DANGEROUS ACTION! If you are admin and remove admin status for yourself, you will not have admin access anymore.");
+
+      while (true) {
+         try {
+            System.out.println("Proceed!???? 1 for yes 0 for no");
+            input = in.readLine();
+            break;
+         } catch (Exception e) {
+            System.out.println("Please input a valid input");
+            continue;
+         }
+      }
+
+      if (!input.equals("1")) {
+         return;
+      }
+
+      while (true) {
+         try {
+
+            System.out.printf("Please enter choice for new user type for [%s]\n", login);
+            System.out.println("1. Employee");
+            System.out.println("2. Customer");
+            switch (readChoice()) {
+               case 1:
+                  newType = "Employee";
+                  break;
+               case 2:
+                  newType = "Customer";
+                  break;
+               default:
+                  System.out.println("Please enter valid choice");
+                  break;
+            }
+
+            if (newType == null) {
+               throw new SQLException("Re-trying choice ...");
+            }
+
+            break;
+         } catch (Exception e) {
+            continue;
+         }
+      }
+
+      try {
+
+         String query;
+         query = "UPDATE Users SET type = ? WHERE login = ?";
+         esql.executeUpdate(query, newType, login);
+         esql.invalidateUserType(login);
+         System.out.printf("User type updated successfully for user [%s]!\n", login);
+
+      } catch (Exception e) {
+         System.out.println("Error updating User, please re-try or contact IT");
+      }
+
+   }
+
+   public static void managerUpdateUser(Cafe esql, String login) {
+
+      String editUserLogin;
+
+      // get user to edit from manager
+      while (true) {
+         try {
+            System.out.println("Please enter a user login to edit");
+            editUserLogin = in.readLine();
+
+            break;
+         } catch (Exception e) {
+            System.out.println("Please enter an input");
+            continue;
+         }
+      }
+
+      // once have user login, check if the user exists
+      int userExists = 0;
+
+      try {
+         String query;
+         query = "SELECT login FROM Users WHERE login = ?";
+
+         userExists = esql.executeQuery(query, editUserLogin);
+
+      } catch (Exception e) {
+         System.out.println("ERROR processing user find, please re-try");
+      }
+
+      boolean inMenu = false;
+
+      if (userExists > 0) {
+
+         String userName = editUserLogin;
+
+         do {
+            inMenu = true;
+
+            System.out.printf("Which information would you like to update for user [%s]?\n", userName);
+            System.out.println("1. Login");
+            System.out.println("2. Phone Number");
+            System.out.println("3. Password");
+            System.out.println("4. Favorite Items");
+            System.out.println("5. Change type");
+            System.out.println("6. Go back to Manager Menu");
+            switch (readChoice()) {
+               case 1:
+                  userName = updateLogin(esql, editUserLogin);
+                  break;
+               case 2:
+                  updatePhoneNumber(esql, userName);
+                  break;
+               case 3:
+                  updatePassword(esql, userName);
+                  break;
+               case 4:
+                  updateFavItems(esql, userName);
+                  break;
+               case 5:
+                  updateType(esql, userName);
+                  break;
+               case 6:
+                  inMenu = false;
+                  break;
+               default:
+                  System.out.println("Choice not recognized!");
+                  break;
+            }
+         } while (inMenu);
+
+      } else {
+         System.out.println("Could not find user, please re-try");
+      }
+
+   }
+
+   /*
+    * Applies a file of user changes in one transaction. Each line is
+    * login;type;phoneNum;password separated by ';' like data/users.csv, an
+    * empty field leaves that field unchanged. Every line is checked against
+    * the current logins and phone numbers first; lines that fail are
+    * reported and skipped, the rest are written as one batch.
+    **/
+   public static void batchUpdateUsers(Cafe esql) {
+
+      String fileName;
+      try {
+         System.out.println("Please enter the file of user changes (login;type;phoneNum;password)");
+         fileName = in.readLine();
+      } catch (Exception e) {
+         System.out.println("Please enter an input");
+         return;
+      }
+
+      long start = System.currentTimeMillis();
+      // phone number by login and login by phone number, as they will be
+      // once the accepted lines are applied
+      Map<String, String> phoneOf = new HashMap<String, String>();
+      Map<String, String> loginOf = new HashMap<String, String>();
+      try {
+         for (List<String> user : esql.executeQueryAndReturnResult("SELECT login, phoneNum FROM Users")) {
+            String userLogin = user.get(0).trim();
+            String phone = user.get(1) == null ? "" : user.get(1).trim();
+            phoneOf.put(userLogin, phone);
+            if (!phone.isEmpty()) {
+               loginOf.put(phone, userLogin);
+            }
+         }
+      } catch (Exception e) {
+         System.out.println("Unable to read the users, please re-try or contact IT");
+         return;
+      }
+
+      List<Object[]> changes = new ArrayList<Object[]>();
+      List<String> rejected = new ArrayList<String>();
+      Set<String> seen = new HashSet<String>();
+      int types = 0, phones = 0, passwords = 0, lineNumber = 0;
+      try {
+         BufferedReader reader = new BufferedReader(new FileReader(fileName));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               lineNumber++;
+               if (line.trim().isEmpty()) {
+                  continue;
+               }
+               String[] fields = Arrays.copyOf(line.split(";", -1), 4);
+               for (int i = 0; i < fields.length; i++) {
+                  fields[i] = fields[i] == null ? "" : fields[i].trim();
+               }
+               String userLogin = fields[0], type = fields[1], phone = fields[2], password = fields[3];
+               if (lineNumber == 1 && userLogin.equalsIgnoreCase("login")) {
+                  continue;
+               }
+
+               String problem = null;
+               if (!phoneOf.containsKey(userLogin)) {
+                  problem = "no such user";
+               } else if (seen.contains(userLogin)) {
+                  problem = "user listed more than once";
+               } else if (!type.isEmpty() && !type.equals("Customer") && !type.equals("Employee") && !type.equals("Manager")) {
+                  problem = "type must be Customer, Employee or Manager";
+               } else if (phone.length() > 16) {
+                  problem = "phone number longer than 16 characters";
+               } else if (!phone.isEmpty() && loginOf.containsKey(phone) && !loginOf.get(phone).equals(userLogin)) {
+                  problem = "phone number already used by " + loginOf.get(phone);
+               } else if (password.length() > 50) {
+                  problem = "password longer than 50 characters";
+               } else if (type.isEmpty() && phone.isEmpty() && password.isEmpty()) {
+                  problem = "nothing to change";
+               }
+               if (problem != null) {
+                  rejected.add(String.format("line %d (%s): %s", lineNumber, userLogin, problem));
+                  continue;
+               }
+
+               seen.add(userLogin);
+               if (!phone.isEmpty()) {
+                  loginOf.remove(phoneOf.get(userLogin));
+                  loginOf.put(phone, userLogin);
+                  phoneOf.put(userLogin, phone);
+                  phones++;
+               }
+               types += type.isEmpty() ? 0 : 1;
+               passwords += password.isEmpty() ? 0 : 1;
+               changes.add(new Object[] { type.isEmpty() ? null : type, phone.isEmpty() ? null : phone,
+                     password.isEmpty() ? null : password, userLogin });
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (IOException e) {
+         System.out.printf("Unable to read [%s]: %s\n", fileName, e.getMessage());
+         return;
+      }
+
+      List<String> missed = new ArrayList<String>();
+      if (!changes.isEmpty()) {
+         try {
+            esql.beginTransaction();
+            String query = "UPDATE Users SET type = COALESCE(?, type), phoneNum = COALESCE(?, phoneNum), " +
+                  "password = COALESCE(?, password) WHERE login = ?";
+            int[] rowCounts = esql.executeBatch(query, changes);
+            esql.commitTransaction();
+            // a user removed after the logins were loaded matches no row;
+            // the phone numbers written are taken from now on
+            for (int i = 0; i < rowCounts.length; i++) {
+               Object[] change = changes.get(i);
+               if (rowCounts[i] == 0) {
+                  missed.add((String) change[3]);
+                  types -= change[0] == null ? 0 : 1;
+                  phones -= change[1] == null ? 0 : 1;
+                  passwords -= change[2] == null ? 0 : 1;
+               } else if (change[1] != null) {
+                  UserIndex.add(null, (String) change[1]);
+               }
+            }
+         } catch (Exception e) {
+            esql.rollbackTransaction();
+            System.out.println("Error updating users, no changes were applied. Please re-try or contact IT");
+            System.err.println(e.getMessage());
+            return;
+         }
+         for (Object[] change : changes) {
+            esql.invalidateUserType((String) change[3]);
+         }
+      }
+
+      System.out.printf("Updated %d users (%d types, %d phone numbers, %d passwords) in %d ms\n",
+            changes.size() - missed.size(), types, phones, passwords, System.currentTimeMillis() - start);
+      if (!missed.isEmpty()) {
+         System.out.printf("No longer found %d users, nothing was changed for them:\n", missed.size());
+         for (String missing : missed) {
+            System.out.println("   " + missing);
+         }
+      }
+      if (!rejected.isEmpty()) {
+         System.out.printf("Skipped %d lines:\n", rejected.size());
+         for (String problem : rejected) {
+            System.out.println("   " + problem);
+         }
+      }
+   }
+
+
+
+public static void PlaceOrder(Cafe esql, String login) {
+
+   String paidStatus = "f";
+
+   String price;
+   BigDecimal priceOrder = BigDecimal.ZERO;
+   // how many of each item, by itemid, in the order they were picked
+   Map<Integer, Integer> quantities = new LinkedHashMap<>();
+   Map<Integer, String> itemNames = new HashMap<>();
+   // the unit price quoted for each item, kept if the order is journaled
+   Map<Integer, BigDecimal> prices = new HashMap<>();
+   boolean inMenu = false;
+
+   if (!RateLimiter.ORDER.tryAcquire(login)) {
+      System.out.println("You have placed a lot of orders in a short time, please wait a minute before ordering again.");
+      return;
+   }
+
+   do{
+
+      inMenu = true;
+      List<List<String>> reorder = null;
+      System.out.println("Hello, what items would you like to order today? Please enter the name of the items you would like to order!");
+      System.out.println("1. See Menu");
+      System.out.println("2. Enter item to order");
+      System.out.println("3. Enter 3 to finish ordering!");
+      System.out.println("4. Reorder my favorite items");
+      System.out.println("5. Repeat my last order");
+      switch(readChoice()){
+               case 1: outputFullMenu(esql);           break;
+               case 2: {
+
+                     String itemName;
+                     List<List<String>> priceResult = new ArrayList<List<String>>();
+
+                     while(true){
+                              try{
+                                       System.out.println("Please enter a menu item to order!");
+                                       itemName = in.readLine();
+                                       break;
+                              }catch(Exception e){
+                                       System.out.println("Please enter a valid input!");
+                                       continue;
+                              }
+                     }
+
+                     // one lookup both checks the item exists and gets its id and price
+                     try{
+                        priceResult = menuItem(esql, itemName);
+                     }catch(Exception e){
+                        System.err.println(e.getMessage());
+                     }
+
+                     if(priceResult.isEmpty()){
+                        System.out.println("The item name you typed did not match our records, please either re-try or retry correctly");
+                        break;
+                     }
+
+                     int quantity;
+                     try{
+                        System.out.println("How many would you like? (press enter for 1)");
+                        String count = in.readLine().trim();
+                        quantity = count.isEmpty() ? 1 : Integer.parseInt(count);
+                     }catch(Exception e){
+                        quantity = 0;
+                     }
+                     if(quantity < 1){
+                        System.out.println("Please enter a quantity of 1 or more");
+                        break;
+                     }
+
+                     // ordering an item again adds to its quantity
+                     Integer itemID = Integer.valueOf(priceResult.get(0).get(0).trim());
+                     BigDecimal itemPrice = new BigDecimal(priceResult.get(0).get(1).trim());
+                     priceOrder = priceOrder.add(itemPrice.multiply(BigDecimal.valueOf(quantity)));
+                     quantities.merge(itemID, quantity, Integer::sum);
+                     itemNames.put(itemID, itemName);
+                     prices.put(itemID, itemPrice);
+
+                  } break;
+                  case 3: inMenu = false;                                        break;
+                  case 4:
+                     try{
+                        reorder = favoriteItemPrices(esql, login);
+                     }catch(Exception e){
+                        System.err.println(e.getMessage());
+                     }
+                     break;
+                  case 5:
+                     try{
+                        reorder = lastOrderItemPrices(esql, login);
+                     }catch(Exception e){
+                        System.err.println(e.getMessage());
+                     }
+                     break;
+               default: System.out.println("Please enter a valid choice 1 - 5"); break;
+               }
+
+      // a reorder replaces the items picked so far and goes straight on to paying
+      if(reorder != null && reorder.isEmpty()){
+         System.out.println("There is nothing to reorder, please pick items from the menu.");
+      }
+      else if(reorder != null){
+         quantities.clear();
+         itemNames.clear();
+         prices.clear();
+         priceOrder = BigDecimal.ZERO;
+         for(List<String> item : reorder){
+            Integer itemID = Integer.valueOf(item.get(2).trim());
+            int quantity = Integer.parseInt(item.get(3).trim());
+            BigDecimal itemPrice = new BigDecimal(item.get(1).trim());
+            itemNames.put(itemID, item.get(0).trim());
+            quantities.put(itemID, quantity);
+            prices.put(itemID, itemPrice);
+            priceOrder = priceOrder.add(itemPrice.multiply(BigDecimal.valueOf(quantity)));
+         }
+         List<String> ordering = new ArrayList<>();
+         for(Map.Entry<Integer, Integer> item : quantities.entrySet()){
+            ordering.add(item.getValue() + " x " + itemNames.get(item.getKey()));
+         }
+         System.out.printf("Ordering: %s\n", String.join(", ", ordering));
+         inMenu = false;
+      }
+
+   }while(inMenu);
+
+   price = priceOrder.toPlainString();
+
+   System.out.printf("Would like to pay for this order now? The total is: %s \n", price);
+   System.out.println("1. Yes");
+   System.out.println("2. No");
+   switch(readChoice()){
+      case 1: paidStatus = "t"; break;
+      case 2: paidStatus = "f"; break;
+      default: System.out.println("Please enter a choice 1 - 2"); break;
+   }
+
+   long now = System.currentTimeMillis();
+   Timestamp time = new Timestamp(now);
+   // names this order for every try of submitting it
+   UUID orderKey = UUID.randomUUID();
+   if (OrderJournal.offline()) {
+      // the database is still catching up on orders taken without it
+      if (journalOrder(esql, login, orderKey, time, paidStatus.equals("t"), quantities, prices)) {
+         System.out.println("Items orderd successfully!");
+      }
+      return;
+   }
+   int orderID;
+   try {
+      orderID = IdAllocator.ORDERS.nextId(esql);
+   } catch (SQLException e) {
+      if (isConnectionLost(e) && journalOrder(esql, login, orderKey, time, paidStatus.equals("t"), quantities, prices)) {
+         System.out.println("Items orderd successfully!");
+         return;
+      }
+      System.out.println("Unable to update order, please re-try or contact IT");
+      System.err.println(e.getMessage());
+      return;
+   }
+
+   for (int attempt = 1; ; attempt++) {
+      try {
+         submitOrder(esql, login, orderID, orderKey, time, paidStatus.equals("t"), quantities, prices);
+         System.out.println("Order created successfully!");
+         break;
+      } catch (SQLException e) {
+         esql.rollbackTransaction();
+         if (attempt >= RETRY_ATTEMPTS && isConnectionLost(e)) {
+            // the order may have been committed before the connection was
+            // lost; the replay finds it by its orderKey then
+            if (!journalOrder(esql, login, orderKey, time, paidStatus.equals("t"), quantities, prices)) {
+               return;
+            }
+            break;
+         }
+         if (attempt >= RETRY_ATTEMPTS || !isTransient(e)) {
+            System.out.println("Unable to update order, please re-try or contact IT");
+            System.err.println(e.getMessage());
+            return;
+         }
+         backoff(attempt);
+      }
+   }
+
+   System.out.println("Items orderd successfully!");
+
+   
+}
+
+   /*
+    * Writes an order, its items and its total as one transaction; each item
+    * keeps the unit price the customer was quoted and the stored total is
+    * summed from them by the database, so it is what the customer was asked
+    * to pay even if the menu was repriced meanwhile. The orderid comes
+    * from IdAllocator, so the item rows are ready before the order is
+    * inserted. The order is inserted only if no order with its orderKey and
+    * time exists, so a try repeated after its commit went through but the
+    * reply was lost finds the order instead of placing it again.
+    *
+    * @return the orderid
+    **/
+   public static int submitOrder(Cafe esql, String login, int orderID, UUID orderKey, Timestamp time, boolean paid,
+         Map<Integer, Integer> quantities, Map<Integer, BigDecimal> prices) throws SQLException {
+      // all items in one batch, one row per item with its quantity
+      List<Object[]> items = new ArrayList<Object[]>();
+      for (Map.Entry<Integer, Integer> item : quantities.entrySet()) {
+         items.add(new Object[] { orderID, time, item.getKey(), item.getValue(), time, ItemState.NOT_STARTED.code,
+               prices.get(item.getKey()) });
+      }
+      Integer userID = esql.getUserId(login);
+
+      esql.beginTransaction();
+
+      String query;
+      query = "INSERT INTO Orders (orderid, orderKey, userid, paid, timeStampRecieved, total) VALUES (?, ?, ?, ?, ?, 0) " +
+            "ON CONFLICT DO NOTHING";
+      if (esql.executeUpdate(query, orderID, orderKey, userID, paid, time) == 0) {
+         // placed by an earlier try, with its items and total
+         esql.commitTransaction();
+         return orderID;
+      }
+
+      query = "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemid, quantity, lastUpdated, status, price) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+      esql.executeBatch(query, items);
+
+      recomputeTotal(esql, orderID, time, null);
+      esql.commitTransaction();
+      return orderID;
+   }
+
+   /*
+    * Appends an order to the offline journal after the database could not
+    * be reached, with the unit prices it was quoted at; returns whether it
+    * was saved.
+    **/
+   public static boolean journalOrder(Cafe esql, String login, UUID orderKey, Timestamp time, boolean paid,
+         Map<Integer, Integer> quantities, Map<Integer, BigDecimal> prices) {
+      try {
+         // known from logging in
+         Integer userID = esql.getUserId(login);
+         OrderJournal.append(orderKey, time, userID, paid, quantities, prices);
+         System.out.println("The database cannot be reached right now. The order was saved on this till and will be sent once it is back.");
+         return true;
+      } catch (Exception e) {
+         System.out.println("Unable to update order, please re-try or contact IT");
+         System.err.println(e.getMessage());
+         return false;
+      }
+   }
+
+   // itemid and price of the menu items looked up for orders, by item name
+   static final Map<String, List<String>> knownMenuItems = new ConcurrentHashMap<String, List<String>>();
+
+   /*
+    * The id and price of a menu item, as a one row result, or no rows when
+    * there is no such item. Items looked up once can still be ordered while
+    * the database is unreachable, at the price they had then.
+    **/
+   public static List<List<String>> menuItem(Cafe esql, String itemName) throws SQLException {
+      List<String> known = knownMenuItems.get(itemName);
+      if (known != null && OrderJournal.offline()) {
+         return Collections.singletonList(known);
+      }
+      try {
+         List<List<String>> result = esql.executeCachedQuery(
+               "SELECT itemid, price FROM Menu WHERE itemName = ?", itemName);
+         if (!result.isEmpty()) {
+            knownMenuItems.put(itemName, result.get(0));
+         }
+         return result;
+      } catch (SQLException e) {
+         if (known == null || !isConnectionLost(e)) {
+            throw e;
+         }
+         return Collections.singletonList(known);
+      }
+   }
+
+   /*
+    * The user's favorite items with their menu prices and ids, one of each
+    **/
+   public static List<List<String>> favoriteItemPrices(Cafe esql, String login) throws SQLException {
+      String query = "SELECT M.itemName, M.price, M.itemid, 1 FROM FavoriteItems F, Menu M " +
+            "WHERE F.userid = ? AND M.itemid = F.itemid ORDER BY M.itemName";
+      return esql.executeQueryAndReturnResult(query, esql.getUserId(login));
+   }
+
+   /*
+    * The items of the user's most recent order with their current menu prices,
+    * ids and the quantities ordered
+    **/
+   public static List<List<String>> lastOrderItemPrices(Cafe esql, String login) throws SQLException {
+      String query = "SELECT M.itemName, M.price, M.itemid, I.quantity FROM ItemStatus I, Menu M, " +
+            "(SELECT orderid, timeStampRecieved FROM Orders WHERE userid = ? ORDER BY timeStampRecieved DESC LIMIT 1) L " +
+            "WHERE I.orderid = L.orderid AND I.orderTimeStamp = L.timeStampRecieved AND M.itemid = I.itemid " +
+            "ORDER BY M.itemName";
+      return esql.executeQueryAndReturnResult(query, esql.getUserId(login));
+   }
+
+
+   public static void UpdateOrder(Cafe esql, String login) {
+
+      String query, loginType = null;
+      List<List<String>> result = new ArrayList<List<String>>();
+
+      // run query to get the type of current user
+      try {
+
+         // get the type of the current user, cached for the session
+         loginType = esql.getUserType(login);
+
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+
+      if (loginType == null) {
+         System.out.println("Unable to look up your account, please re-try or contact IT");
+         return;
+      }
+
+      boolean inMenu = false;
+
+      if(loginType.equals("Customer")){
+         
+         do{
+            inMenu = true;
+
+            System.out.printf("Welcome to update order user [%s]!\n", login);
+            System.out.println("Choose an option");
+            System.out.println("1. Modify Order");
+            System.out.println("2. See order history (only 5 recent)");
+            System.out.println("3. Return to main menu");
+
+            switch(readChoice()){
+               case 1: modifyOrder(esql , login);    break;
+               case 2: outLast5Order(esql, login);    break;
+               case 3: inMenu = false; break;
+               default: System.out.println("Option does not exist, choose 1 - 3 !"); break;
+            }
+
+
+         }while(inMenu);
+
+
+      }
+      else if(!loginType.equals("Customer")){
+
+         do{
+
+            inMenu = true;
+
+            System.out.printf("Welcome to employee/manager to update order. Current user ID: [%s]!\n", login);
+            System.out.println("Choose an option");
+	    System.out.println("1. Modify Order");
+	    System.out.println("2. See order history (only 5 recent)");
+	    System.out.println("3. See all orders within the last day");
+	    System.out.println("4. Change order paid status");
+	    System.out.println("5. Kitchen queue");
+	    System.out.println("6. Return to main menu");
+		
+            switch(readChoice()){
+               case 1: modifyOrder(esql, login);	  break;
+               case 2: outLast5Order(esql, login);        break;
+               case 3: outputOrderHistroy(esql, login);   break;
+	       case 4: changeOrderPaidStatus(esql, login);break;
+	       case 5: kitchenQueue(esql);		  break;
+	       case 6: inMenu = false; 			  break;
+               default: System.out.println("Option does not exist, choose 1 - 6!"); break;
+            }
+
+
+         }while(inMenu);
+
+
+      }
+
+
+   }//end update order 
+
+   public static void modifyOrder(Cafe esql, String login){
+
+      String orderID, query, paidStatus, itemID, itemName;
+      List<List<String>> result = new ArrayList<List<String>>();
+      paidStatus = "t";
+      boolean itemFound = false;
+      while (true) {
+         try {
+            System.out.print("Enter order ID to modify the order: ");
+            orderID = in.readLine();
+            // if(nameName.length() > 50){
+            // throw new SQLException("Name exceeds limit. Please try a smaller name.");
+            // }
+            break;
+         } catch (Exception e) {
+            System.out.println("Please input an orderID");
+            continue;
+         }
+      }
+
+      int id;
+      try {
+         id = Integer.parseInt(orderID.trim());
+      } catch (NumberFormatException e) {
+         System.out.println("This order ID either does not exist, or does not belong to you.");
+         return;
+      }
+
+      List<List<String>> items = new ArrayList<List<String>>();
+      Timestamp orderTime = null;
+      try {
+         result = esql.executeQueryAndReturnResult(
+               "SELECT paid, timeStampRecieved FROM Orders WHERE orderid = ? AND userid = ?", id, esql.getUserId(login));
+         if(result.isEmpty()){
+            throw new SQLException();
+         }
+         // the order time names the month partition of the order and its
+         // items, every query after this one only searches that partition
+         orderTime = Timestamp.valueOf(result.get(0).get(1).trim());
+         items = esql.executeQueryAndReturnResult(
+               "SELECT M.itemName, I.quantity, I.lastUpdated, " + ItemState.label("I.status") + " FROM ItemStatus I, Menu M " +
+                     "WHERE I.orderid = ? AND I.orderTimeStamp = ? AND M.itemid = I.itemid ORDER BY M.itemName", id, orderTime);
+         itemFound = true;
+      } catch (Exception e) {
+         System.out.println("This order ID either does not exist, or does not belong to you.");
+      }
+	
+	if(itemFound){
+		paidStatus = result.get(0).get(0);
+     		 paidStatus = paidStatus.replaceAll(" ", "");
+     		// System.out.println("paidStatus: " + paidStatus + "test");
+	}
+      if(!paidStatus.equals("t")){ // if the item status of the orderID is not paid
+
+         //the orders placed for a specific orderID
+         result = items;
+
+         System.out.println("For this order ID, you ordered the following items below");
+         
+         TableRenderer.print(Arrays.asList("Item", "Quantity", "Updated", "Status"), result);
+
+         int check; 
+         while (true) {
+            try {
+               System.out.println("Which item would you like to modify?");
+
+               for(int i = 0; i < result.size(); i++){
+                  System.out.printf("%d. %s", i, result.get(i).get(0));
+                  System.out.println();
+               }
+               System.out.println("Please input the number for item:");
+               check = Integer.parseInt(in.readLine());
+               if(check < 0 || check > result.size()-1){
+                  throw new SQLException();
+               }
+               break;
+            } catch (Exception e) {
+               System.out.println("The number you inputted was not in the menu listed above.");
+               continue;
+            }
+         }
+         
+         itemName = result.get(check).get(0);
+         itemName = itemName.replaceAll("\\s{2,}", "");
+         //System.out.println("ItemName: " + itemName);
+         boolean inMenu = false;
+         List<List<String>> statusResult = new ArrayList<List<String>>();
+         //see if the itemName the user selected is in the menu, fetching its
+         //status in the same round trip
+         try {
+
+            List<List<List<String>>> results = esql.executeQueriesPipelined(new String[] {
+                  "SELECT itemName FROM Menu WHERE itemName = ?",
+                  "SELECT I.status FROM ItemStatus I, Menu M WHERE I.orderid = ? AND I.orderTimeStamp = ? " +
+                        "AND M.itemid = I.itemid AND M.itemName = ?" },
+                  new Object[] { itemName }, new Object[] { id, orderTime, itemName });
+            statusResult = results.get(1);
+
+            if(results.get(0).isEmpty()){
+               throw new SQLException();
+            }
+
+            inMenu = true;
+            
+         } catch (Exception e) {
+            System.out.println("ERROR: ItemName you choose is not in menu ... please re-try");
+
+         }
+
+
+
+         if(inMenu){
+
+            result = statusResult;
+            // the item may have been swapped or removed since the list above
+            if(result.isEmpty()){
+               System.out.println("The item is no longer part of this order.");
+               return;
+            }
+
+            ItemState itemState = ItemState.of(result.get(0).get(0));
+            if(itemState == ItemState.NOT_STARTED){
+               boolean tempMenu = false;
+
+               do{
+
+                  tempMenu = true;
+
+                  System.out.printf("You are now modifying item [%s] for orderID [%s]\n", itemName, orderID);
+                  System.out.println("1. Would you like to see the menu?");
+                  System.out.println("2. Modify order to a new order");
+                  System.out.println("3. I changed my mind, I wanna keep the order!");
+                  switch(readChoice()){
+                     case 1: outputFullMenu(esql); break;
+                     case 2: {
+
+                        String newMenuItem;
+                        boolean inMenuTwo = false;
+
+                        while(true){
+                           try{
+
+                              System.out.println("Please enter new item name from menu to replace order!");
+                              newMenuItem = in.readLine();
+
+                              break;
+   
+                           }catch(Exception e){
+                              System.out.println("Please input an item!");
+                              continue;
+                           }
+                        }
+
+                        try{
+                           query = "SELECT itemName FROM Menu WHERE itemName = ?";
+                           if(esql.executeQuery(query, newMenuItem) == 0){
+                              throw new SQLException();
+                           }
+                           inMenuTwo = true;
+                        }catch(Exception e){
+                           System.out.println("Item is not in the menu, please re-try!");
+                        }
+                        
+                        if(inMenuTwo){
+
+                           if(swapOrderItem(esql, orderID, orderTime, itemName, newMenuItem)){
+                              System.out.println("Order successfully updated!");
+                           }
+
+                           tempMenu = false;
+                        }
+
+                     } break;
+                     case 3: tempMenu = false; break;
+                     default: System.out.println("Choose either 1, 2 , or 3"); break;
+                  }
+
+               }while(tempMenu);
+
+            }
+            else if(itemState != ItemState.NOT_STARTED){
+               System.out.println("The item has been started, you may not update this item for this specific ID, please choose another item");
+            }
+
+         }
+      
+
+      }
+      else if(paidStatus.equals("t")){
+
+         System.out.println("You may not modify this order");
+
+      }
+
+   }//end fucntion modify order
+   /*
+    * Replaces itemName by newMenuItem in the order placed at orderTime,
+    * keeping its quantity, and recomputes the order total.
+    * Both rows are written in one short transaction guarded by their version
+    * columns; if another terminal changed the order in between, the order is
+    * re-read and the swap retried instead of overwriting its changes.
+    *
+    * @return true if the swap was committed
+    **/
+   public static boolean swapOrderItem(Cafe esql, String orderID, Timestamp orderTime, String itemName,
+         String newMenuItem) {
+
+      int id = Integer.parseInt(orderID.trim());
+      for (int attempt = 1; attempt <= MAX_VERSION_RETRIES; attempt++) {
+         List<List<String>> current;
+         try {
+            String query = "SELECT O.paid, O.version, I.status, I.version, I.itemid " +
+                  "FROM Orders O, ItemStatus I, Menu M WHERE O.orderid = ? AND O.timeStampRecieved = ? " +
+                  "AND I.orderid = O.orderid AND I.orderTimeStamp = O.timeStampRecieved " +
+                  "AND M.itemid = I.itemid AND M.itemName = ?";
+            current = esql.executeQueryAndReturnResult(query, id, orderTime, itemName);
+         } catch (Exception e) {
+            System.out.println("Unable to retrieve records, please re-try, or contact devs");
+            System.err.println(e.getMessage());
+            return false;
+         }
+
+         if (current.isEmpty()) {
+            System.out.println("The item is no longer part of this order.");
+            return false;
+         }
+         List<String> row = current.get(0);
+         if (row.get(0).trim().startsWith("t")) {
+            System.out.println("The order has been paid in the meantime, you may not modify this order");
+            return false;
+         }
+         if (ItemState.of(row.get(2)) != ItemState.NOT_STARTED) {
+            System.out.println("The item has been started in the meantime, you may not update this item");
+            return false;
+         }
+
+         int orderVersion = Integer.parseInt(row.get(1).trim());
+         int itemVersion = Integer.parseInt(row.get(3).trim());
+         int itemID = Integer.parseInt(row.get(4).trim());
+         Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+
+         try {
+            esql.beginTransaction();
+            int items = esql.executeUpdate("UPDATE ItemStatus SET itemid = (SELECT itemid FROM Menu WHERE itemName = ?), " +
+                  "price = (SELECT price FROM Menu WHERE itemName = ?), " +
+                  "lastUpdated = ?, version = version + 1 " +
+                  "WHERE orderid = ? AND orderTimeStamp = ? AND itemid = ? AND version = ?",
+                  newMenuItem, newMenuItem, timestamp, id, orderTime, itemID, itemVersion);
+            int orders = recomputeTotal(esql, id, orderTime, orderVersion);
+            if (items == 1 && orders == 1) {
+               esql.commitTransaction();
+               return true;
+            }
+            esql.rollbackTransaction();
+            System.out.println("The order was changed by someone else, retrying ...");
+         } catch (SQLException e) {
+            esql.rollbackTransaction();
+            if ("23505".equals(e.getSQLState())) {
+               System.out.println("That item is already part of this order.");
+               return false;
+            }
+            System.out.println("Unable to update order, please re-try, or contact devs");
+            System.err.println(e.getMessage());
+            return false;
+         }
+      }
+
+      System.out.println("The order keeps changing, please re-try later.");
+      return false;
+   }
+
+   /*
+    * Sets an order's total to the sum of the prices its items were ordered at
+    * times their quantities, so
+    * totals are always computed by the database in numeric. With a version,
+    * it only applies to that version of the order and bumps it. The order
+    * time is given for the order and its items, so only the partition of its
+    * month is searched.
+    *
+    * @return the number of orders updated
+    **/
+   public static int recomputeTotal(Cafe esql, int orderID, Timestamp orderTime, Integer version) throws SQLException {
+      String query = "UPDATE Orders O SET total = (SELECT COALESCE(SUM(I.price * I.quantity), 0) " +
+            "FROM ItemStatus I WHERE I.orderid = O.orderid AND I.orderTimeStamp = ?)";
+      if (version == null) {
+         return esql.executeUpdate(query + " WHERE O.orderid = ? AND O.timeStampRecieved = ?",
+               orderTime, orderID, orderTime);
+      }
+      return esql.executeUpdate(query + ", version = version + 1 " +
+            "WHERE O.orderid = ? AND O.timeStampRecieved = ? AND O.version = ?", orderTime, orderID, orderTime, version);
+   }
+
+   public static void outputOrderHistroy(Cafe esql, String login){
+	
+	System.out.println("Order histroy from the past 24 hours.");
+      List<List<String>> result = new ArrayList<List<String>>();
+      String query;
+	String timeString, dayBeforeString;
+
+	long now = System.currentTimeMillis();
+	Timestamp time = new Timestamp(now);
+	timeString = time.toString();
+	
+	Calendar cal = Calendar.getInstance();
+	cal.setTimeInMillis(time.getTime());
+	cal.add(Calendar.DAY_OF_MONTH, -1);
+	time = new Timestamp(cal.getTime().getTime());
+
+	dayBeforeString = time.toString();
+         try{
+            
+            //query = String.format("SELECT orderid, itemName FROM ItemStatus WHERE '%s' >= dateadd(day, datediff(day, 1, GETDATE()), 0) AND '%s' < dateadd(day, datediff(day,0,GETDATE()),0)", time, time);
+            query = "SELECT I.orderid, M.itemName, I.quantity, I.lastUpdated, " + ItemState.label("I.status") + ", I.comments FROM ItemStatus I, Menu M WHERE M.itemid = I.itemid AND I.lastUpdated < ? AND I.lastUpdated >= ?"; 
+	    result = esql.executeReadQuery(query, Timestamp.valueOf(timeString), Timestamp.valueOf(dayBeforeString));
+
+         }catch(Exception e){
+            //System.out.println("Unable to process the request, please contact devs");
+            System.err.println(e.getMessage());
+         }
+
+         TableRenderer.print(Arrays.asList("Order", "Item", "Quantity", "Updated", "Status", "Comments"), result);
+
+      
+
+
+      
+
+   }
+
+public static void outLast5Order(Cafe esql, String login){
+
+	List<List<String>> result = new ArrayList<List<String>>();
+      	String query;
+	
+	 System.out.println("Last 5 orders are listed below");
+
+         try{
+
+            query = "SELECT I.orderid, M.itemName, I.quantity, I.lastUpdated, " + ItemState.label("I.status") + " AS status, I.comments FROM ItemStatus I, Orders O, Menu M WHERE I.orderid = O.orderid AND I.orderTimeStamp = O.timeStampRecieved AND M.itemid = I.itemid AND O.userid = ? ORDER BY I.orderTimeStamp DESC, I.orderid DESC LIMIT 5";
+//            result = esql.executeQueryAndReturnResult(query);
+		esql.executeCachedQueryAndPrintResult(query, esql.getUserId(login));
+         }catch(Exception e){
+            //System.out.println("Unable to process the request, please contact devs");
+            System.err.println(e.getMessage());
+         }
+
+         //for(int i = 0; i < result.size(); i++){
+         //   for(int j = 0; j < result.get(i).size(); j++){
+         //         System.out.printf(result.get(i).get(j) + " ");
+         //   } 
+         //   System.out.println();
+         //}	
+
+	//System.out.println("Test");
+}
+
+   /*
+    * Lists the items the kitchen still has to make, oldest order first, and
+    * moves the chosen one to its next state. The list reads only the partial
+    * index on unfinished items; the update is a primary key write into the
+    * order's month that only applies if nobody moved the item in between.
+    **/
+   public static void kitchenQueue(Cafe esql) {
 
-      String newLogin;
       while (true) {
+         List<List<String>> result = new ArrayList<List<String>>();
          try {
-
-            System.out.printf("Please enter new user login for [%s]\n", login);
-            newLogin = in.readLine();
-            break;
+            String query = "SELECT I.orderid, I.orderTimeStamp, I.itemid, I.status, M.itemName, I.quantity, I.comments " +
+                  "FROM ItemStatus I, Menu M WHERE I.status < " + ItemState.FINISHED.code + " AND M.itemid = I.itemid " +
+                  "ORDER BY I.orderTimeStamp, I.orderid LIMIT ?";
+            result = esql.executeReadQuery(query, KITCHEN_QUEUE_ROWS);
          } catch (Exception e) {
-            System.out.println("Please enter a valid login. ");
-            continue;
+            System.out.println("Unable to retrieve records, please re-try, or contact devs");
+            System.err.println(e.getMessage());
+            return;
          }
-      }
 
-      try {
-         String query;
-         query = String.format("SELECT login FROM USERS WHERE login = '%s'", newLogin);
+         if (result.isEmpty()) {
+            System.out.println("No items are waiting in the kitchen.");
+            return;
+         }
+         List<List<String>> rows = new ArrayList<List<String>>();
+         for (int i = 0; i < result.size(); i++) {
+            List<String> item = result.get(i);
+            rows.add(Arrays.asList(String.valueOf(i + 1), item.get(0), item.get(4), item.get(5), item.get(1),
+                  ItemState.of(item.get(3)).label, item.get(6)));
+         }
+         TableRenderer.print(Arrays.asList("#", "Order", "Item", "Quantity", "Ordered", "Status", "Comments"), rows);
 
-         if (esql.executeQuery(query) > 0) {
-            System.out.println("The login you choose already exists, please re-try and choose a new one.");
+         System.out.println("Enter the # of an item to move it to its next state, or press enter to return");
+         String choice;
+         try {
+            choice = in.readLine();
+         } catch (IOException e) {
+            return;
+         }
+         if (choice == null || choice.trim().isEmpty()) {
+            return;
+         }
+         int index;
+         try {
+            index = Integer.parseInt(choice.trim()) - 1;
+         } catch (NumberFormatException e) {
+            index = -1;
+         }
+         if (index < 0 || index >= result.size()) {
+            System.out.printf("Choose a # from 1 - %d\n", result.size());
+            continue;
+         }
 
-            return login;
-         } else {
-            query = String.format("UPDATE Users SET login = '%s' WHERE login = '%s'", newLogin, login);
-            esql.executeUpdate(query);
-            System.out.println("Login updated successfully!");
+         List<String> item = result.get(index);
+         ItemState state = ItemState.of(item.get(3));
+         ItemState next = state.next();
+         try {
+            String query = "UPDATE ItemStatus SET status = ?, lastUpdated = ?, version = version + 1 " +
+                  "WHERE orderid = ? AND orderTimeStamp = ? AND itemid = ? AND status = ?";
+            int updated = esql.executeUpdate(query, next.code, new Timestamp(System.currentTimeMillis()),
+                  Integer.parseInt(item.get(0).trim()), Timestamp.valueOf(item.get(1).trim()),
+                  Integer.parseInt(item.get(2).trim()), state.code);
+            if (updated == 1) {
+               System.out.printf("[%s] of order %s is now %s\n", item.get(4).trim(), item.get(0).trim(), next.label);
+            } else {
+               System.out.println("The item was changed by someone else, please check it again.");
+            }
+         } catch (Exception e) {
+            System.out.println("Unable to update the item, please re-try, or contact devs");
+            System.err.println(e.getMessage());
+            return;
          }
-      } catch (Exception e) {
-         System.out.println("Error updating User, please re-try or contact IT");
       }
-	try{
-		String query;
-		query = String.format("UPDATE Orders SET login = '%s' WHERE login = '%s'", newLogin, login);
-		esql.executeUpdate(query);
-	}catch(Exception e){
-		System.out.println("Unable to update the user records, please re-try!");
-		
-	}
-
-      return newLogin;
-
    }
 
-   public static void updatePhoneNumber(Cafe esql, String login) {
+   public static void changeOrderPaidStatus(Cafe esql, String login){
+
+      String orderID;
+      String paidStatus = "false";
 
-      String newPhoneNumber;
       while (true) {
          try {
-
-            System.out.printf("Please enter new user phone number for [%s]\n", login);
-
-            // TODO add line where it shows the user current phone number
-            newPhoneNumber = in.readLine();
+            System.out.println("What order ID would you like to change?");
+            orderID = in.readLine();
+            // if(nameName.length() > 50){
+            // throw new SQLException("Name exceeds limit. Please try a smaller name.");
+            // }
             break;
          } catch (Exception e) {
-            System.out.println("Please enter a valid phone number.");
+            System.out.println("Please input an orderID");
             continue;
          }
       }
 
+      int id;
       try {
-         String query;
-         query = String.format("SELECT phoneNum FROM Users WHERE phoneNum = '%s'", newPhoneNumber);
+         id = Integer.parseInt(orderID.trim());
+      } catch (NumberFormatException e) {
+         System.out.println("Order ID does not exist.");
+         return;
+      }
 
-         if (esql.executeQuery(query) > 0) {
-            System.out.println("The phone number you choose already exists, please re-try and choose a new one.");
+      // the status is only written if the order is still the version (and
+      // total) that was shown, otherwise the fresh order is shown again
+      for (int attempt = 1; attempt <= MAX_VERSION_RETRIES; attempt++) {
+         List<List<String>> result = new ArrayList<List<String>>();
+         try{
+            String query = "SELECT paid, total, version, timeStampRecieved FROM Orders WHERE orderid = ?";
+            result = esql.executeQueryAndReturnResult(query, id);
+         }catch(Exception e){
+            System.err.println(e.getMessage());
+         }
+         if(result.isEmpty()){
+            System.out.println("Order ID does not exist.");
+            return;
+         }
 
-         } else {
-            query = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", newPhoneNumber, login);
-            esql.executeUpdate(query);
-            System.out.printf("Phone number updated successfully for user [%s]!\n", login);
+         int version = Integer.parseInt(result.get(0).get(2).trim());
+         Timestamp orderTime = Timestamp.valueOf(result.get(0).get(3).trim());
+         System.out.printf("Order [%s] total is %s, currently %s\n", orderID, result.get(0).get(1).trim(),
+               result.get(0).get(0).trim().startsWith("t") ? "paid" : "not paid");
+         System.out.printf("What paid status would you like to give to this order for orderID [%s]?\n", orderID);
+         System.out.println("1. Paid");
+         System.out.println("2. Non-Paid");
+         switch(readChoice()){
+            case 1: paidStatus = "t"; break;
+            case 2: paidStatus = "f"; break;
+            default: System.out.println("Please input 1, 2"); return;
+         }
+
+         try{
+            String query = "UPDATE Orders SET paid = ?, version = version + 1 " +
+                  "WHERE orderid = ? AND timeStampRecieved = ? AND version = ?";
+            if(esql.executeUpdate(query, paidStatus.equals("t"), id, orderTime, version) == 1){
+               System.out.println("Status updated successfully!");
+               return;
+            }
+            System.out.println("The order was changed by someone else, please check it again.");
+         }catch(Exception e){
+            System.out.println("Unable to update order, please re-try, or contact devs");
+            System.err.println(e.getMessage());
+            return;
          }
-      } catch (Exception e) {
-         System.out.println("Error updating User, please re-try or contact IT");
       }
 
    }
 
-   public static void updatePassword(Cafe esql, String login) {
+   public static void SalesReports(Cafe esql, String login) {
 
-      String newPassword, passwordTwo;
-      while (true) {
-         try {
+      String query, loginType = null;
+      List<List<String>> result = new ArrayList<List<String>>();
 
-            System.out.printf("Please enter new user password for [%s]\n", login);
-            // TODO add line where it shows the user current phone number
-            newPassword = in.readLine();
+      try {
+         loginType = esql.getUserType(login);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
 
-            System.out.println("Please re-type password");
-            passwordTwo = in.readLine();
+      if (loginType == null) {
+         System.out.println("Unable to look up your account, please re-try or contact IT");
+         return;
+      }
 
-            if (!passwordTwo.equals(newPassword)) {
-               throw new SQLException("Passwords do not match, please re-type!");
-            }
+      if (!loginType.equals("Manager")) {
+         System.out.println("Sales reports are only available to managers.");
+         return;
+      }
 
-            break;
-         } catch (Exception e) {
-            System.out.println("Please enter a valid password.");
+      boolean inMenu = false;
+      do {
+         inMenu = true;
+
+         System.out.println("Sales reports. How would you like to proceed?");
+         System.out.println("1. Revenue per hour");
+         System.out.println("2. Revenue per day");
+         System.out.println("3. Top items");
+         System.out.println("4. Paid vs unpaid totals");
+         System.out.println("5. Spend per customer");
+         System.out.println("6. Archive closed months");
+         System.out.println("7. Export orders to CSV");
+         System.out.println("8. Go back to main menu");
+
+         int choice = readChoice();
+         if (choice == 8) {
+            inMenu = false;
+            continue;
+         }
+         if (choice == 6) {
+            archiveClosedMonths(esql);
+            continue;
+         }
+         if (choice == 7) {
+            exportOrders(esql);
+            continue;
+         }
+         if (choice < 1 || choice > 5) {
+            System.out.println("Choice not recognized!");
             continue;
          }
-      }
 
-      try {
+         String from = readReportDate("start");
+         String to = readReportDate("end (exclusive)");
 
-         String query;
-         query = String.format("UPDATE Users SET password = '%s' WHERE login = '%s'", newPassword, login);
-         esql.executeUpdate(query);
-         System.out.printf("Password updated successfully for user [%s]\n!", login);
+         try {
+            switch (choice) {
+               case 1:
+                  printReport(new String[] { "hour", "orders", "revenue" },
+                        revenueByPeriod(esql, "hour", from, to));
+                  break;
+               case 2:
+                  printReport(new String[] { "day", "orders", "revenue" },
+                        revenueByPeriod(esql, "day", from, to));
+                  break;
+               case 3:
+                  printReport(new String[] { "itemName", "sold", "revenue" },
+                        topItems(esql, from, to, 10));
+                  break;
+               case 4:
+                  printReport(new String[] { "paid", "orders", "total" },
+                        paidTotals(esql, from, to));
+                  break;
+               case 5:
+                  printReport(new String[] { "login", "orders", "spent" },
+                        customerSpend(esql, from, to, 20));
+                  break;
+            }
+         } catch (Exception e) {
+            System.out.println("Unable to build the report, please re-try or contact IT");
+            System.err.println(e.getMessage());
+         }
 
+      } while (inMenu);
+
+   }// end SalesReports
+
+   /*
+    * Writes every item of the orders placed in a date range, one line per
+    * item with its order, to a CSV file (gzip compressed if its name ends in
+    * .gz). Archived months come first, then the rows stream from the
+    * database to the file. The archive is column oriented, so each archived
+    * month in the range is read whole into memory, one month at a time; the
+    * months still in the database need no more memory than a small export.
+    **/
+   public static void exportOrders(Cafe esql) {
+
+      String from = readReportDate("start");
+      String to = readReportDate("end (exclusive)");
+      String defaultName = String.format("orders_%s_%s.csv.gz", from, to);
+      System.out.printf("Enter the file to write [%s]: ", defaultName);
+      String name;
+      try {
+         name = in.readLine();
+      } catch (IOException e) {
+         return;
+      }
+      File file = new File(name == null || name.trim().isEmpty() ? defaultName : name.trim());
+
+      final String first = from, last = to;
+      final List<String> months = archive.months(from, to);
+      // archived months are all older than the months still in the database
+      CsvRows archived = new CsvRows() {
+         public long write(Writer out) throws IOException {
+            long rows = 0;
+            for (String month : months) {
+               Map<String, List<String>> orders = new HashMap<String, List<String>>();
+               for (List<String> order : archive.readOrders(month, first, last)) {
+                  orders.put(order.get(0), order);
+               }
+               List<List<String>> items = archive.readItems(month, first, last);
+               sortArchivedItems(items);
+               for (List<String> item : items) {
+                  List<String> order = orders.get(item.get(0));
+                  if (order == null) {
+                     continue;
+                  }
+                  writeCsvRow(out, Arrays.asList(order.get(0), order.get(1),
+                        order.get(2) == null ? null : String.valueOf(order.get(2).equals("t")),
+                        csvTime(order.get(3)), order.get(4), item.get(2), item.get(7), item.get(6),
+                        item.get(4), csvTime(item.get(3)), item.get(5)));
+                  rows++;
+               }
+            }
+            return rows;
+         }
+      };
+
+      Timestamp start = Timestamp.valueOf(from + " 00:00:00");
+      Timestamp end = Timestamp.valueOf(to + " 00:00:00");
+      // both order time bounds, so each table is pruned to the months asked for
+      String query = "SELECT O.orderid, U.login, O.paid, O.timeStampRecieved, O.total, M.itemName, I.quantity, " +
+            "I.price, " + ItemState.label("I.status") + " AS status, I.lastUpdated, I.comments " +
+            "FROM Orders O JOIN ItemStatus I ON I.orderid = O.orderid AND I.orderTimeStamp = O.timeStampRecieved " +
+            "LEFT JOIN Users U ON U.userid = O.userid LEFT JOIN Menu M ON M.itemid = I.itemid " +
+            "WHERE O.timeStampRecieved >= ? AND O.timeStampRecieved < ? " +
+            "AND I.orderTimeStamp >= ? AND I.orderTimeStamp < ? " +
+            "ORDER BY O.timeStampRecieved, O.orderid, M.itemName";
+      try {
+         long started = System.nanoTime();
+         long rows = esql.executeQueryToCsv(file, archived, query, start, end, start, end);
+         System.out.printf("Exported %d items to %s in %d ms\n", rows, file.getPath(),
+               (System.nanoTime() - started) / 1000000);
       } catch (Exception e) {
-         System.out.println("Error updating User, please re-try or contact IT");
+         System.out.println("Unable to export the orders, please re-try or contact IT");
+         System.err.println(e.getMessage());
       }
    }
 
-   public static void updateFavItems(Cafe esql, String login) {
+   // sorts archived item rows like the export query, by order time and
+   // order; the sort is stable, so the items of an order keep the item name
+   // order the database wrote the archive in, in its own collation
+   static void sortArchivedItems(List<List<String>> items) {
+      Collections.sort(items, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int c = Timestamp.valueOf(a.get(1)).compareTo(Timestamp.valueOf(b.get(1)));
+            if (c == 0) {
+               c = Long.compare(Long.parseLong(a.get(0)), Long.parseLong(b.get(0)));
+            }
+            return c;
+         }
+      });
+   }
 
-      String newFavItems;
+   // an archived timestamp as the database prints it, without a zero fraction
+   static String csvTime(String time) {
+      return time != null && time.endsWith(".0") ? time.substring(0, time.length() - 2) : time;
+   }
 
+   /*
+    * Reads a YYYY-MM-DD date for a report bound, re-prompting until it parses.
+    **/
+   public static String readReportDate(String bound) {
       while (true) {
          try {
-            System.out.printf("Please enter new favorite items for [%s]\n", login);
-            // TODO add line where it shows the user current phone number
-            newFavItems = in.readLine();
-            break;
+            System.out.printf("Enter report %s date (YYYY-MM-DD): ", bound);
+            return java.sql.Date.valueOf(in.readLine().trim()).toString();
          } catch (Exception e) {
-            System.out.println("Please input a valid input");
-            continue;
+            System.out.println("Please enter a date such as 2023-03-01");
          }
       }
+   }
 
-      try {
-
-         String query;
-         query = String.format("UPDATE Users SET favItems = '%s' WHERE login = '%s'", newFavItems, login);
-         esql.executeUpdate(query);
-         System.out.printf("Favorite items updated successfully for user [%s]!\n", login);
-
-      } catch (Exception e) {
-         System.out.println("Error updating User, please re-try or contact IT");
+   public static void printReport(String[] header, List<List<String>> rows) {
+      if (rows.isEmpty()) {
+         System.out.println("No orders in this date range.");
+      } else {
+         TableRenderer.print(Arrays.asList(header), rows);
       }
-
    }
 
-   public static void updateType(Cafe esql, String login) {
-
-      String newType = null;
-      String input;
+   /*
+    * Order count and revenue bucketed by 'hour' or 'day' over [from, to).
+    * The aggregation runs in the database and is served by index1.
+    **/
+   public static List<List<String>> revenueByPeriod(Cafe esql, String period, String from, String to)
+         throws SQLException, IOException {
+      // period is 'hour' or 'day', never user input
+      String query = String.format(
+            "SELECT date_trunc('%s', timeStampRecieved) AS period, COUNT(*), SUM(total) " +
+                  "FROM Orders WHERE timeStampRecieved >= ? AND timeStampRecieved < ? " +
+                  "GROUP BY 1 ORDER BY 1",
+            period);
+      List<List<String>> live = esql.executeQueryAndReturnResult(query, reportTime(from), reportTime(to));
+
+      List<List<String>> archived = archive.readOrders(from, to);
+      if (archived.isEmpty()) {
+         return live;
+      }
+      Map<String, BigDecimal[]> totals = new HashMap<String, BigDecimal[]>();
+      for (List<String> order : archived) {
+         String time = order.get(3);
+         String bucket = period.equals("hour") ? time.substring(0, 13) + ":00:00"
+               : time.substring(0, 10) + " 00:00:00";
+         accumulate(totals, bucket, parseAmount(order.get(4)));
+      }
+      return mergeReport(live, totals);
+   }
 
-      System.out.println(
-            "DANGEROUS ACTION! If you are admin and remove admin status for yourself, you will not have admin access anymore.");
+   /*
+    * Best selling items over [from, to), most sold first, with the revenue at
+    * the prices they were ordered at.
+    **/
+   public static List<List<String>> topItems(Cafe esql, String from, String to, int limit)
+         throws SQLException, IOException {
+      String query = "SELECT M.itemName, SUM(I.quantity) AS sold, SUM(I.price * I.quantity) AS revenue " +
+            "FROM Orders O, ItemStatus I, Menu M " +
+            "WHERE I.orderid = O.orderid AND I.orderTimeStamp = O.timeStampRecieved " +
+            "AND M.itemid = I.itemid " +
+            "AND O.timeStampRecieved >= ? AND O.timeStampRecieved < ? " +
+            "AND I.orderTimeStamp >= ? AND I.orderTimeStamp < ? " +
+            "GROUP BY M.itemName ORDER BY sold DESC, M.itemName";
+      List<List<String>> live = esql.executeQueryAndReturnResult(query,
+            reportTime(from), reportTime(to), reportTime(from), reportTime(to));
+
+      List<List<String>> archived = archive.readItems(from, to);
+      if (archived.isEmpty()) {
+         return firstRows(live, limit);
+      }
+      Map<String, BigDecimal[]> totals = new HashMap<String, BigDecimal[]>();
+      for (List<String> item : archived) {
+         int quantity = Integer.parseInt(item.get(7));
+         accumulate(totals, item.get(2), quantity, parseAmount(item.get(6)).multiply(BigDecimal.valueOf(quantity)));
+      }
+      List<List<String>> merged = mergeReport(live, totals);
+      sortByColumnDesc(merged, 1);
+      return firstRows(merged, limit);
+   }
 
-      while (true) {
-         try {
-            System.out.println("Proceed!???? 1 for yes 0 for no");
-            input = in.readLine();
-            break;
-         } catch (Exception e) {
-            System.out.println("Please input a valid input");
-            continue;
-         }
+   /*
+    * Order count and total split by paid status over [from, to).
+    **/
+   public static List<List<String>> paidTotals(Cafe esql, String from, String to)
+         throws SQLException, IOException {
+      String query = "SELECT paid, COUNT(*), SUM(total) FROM Orders " +
+            "WHERE timeStampRecieved >= ? AND timeStampRecieved < ? " +
+            "GROUP BY paid ORDER BY paid DESC";
+      List<List<String>> live = esql.executeQueryAndReturnResult(query, reportTime(from), reportTime(to));
+
+      List<List<String>> archived = archive.readOrders(from, to);
+      if (archived.isEmpty()) {
+         return live;
+      }
+      Map<String, BigDecimal[]> totals = new HashMap<String, BigDecimal[]>();
+      for (List<String> order : archived) {
+         accumulate(totals, order.get(2), parseAmount(order.get(4)));
       }
+      List<List<String>> merged = mergeReport(live, totals);
+      Collections.reverse(merged);
+      return merged;
+   }
 
-      if (!input.equals("1")) {
-         return;
+   /*
+    * Highest spending customers over [from, to).
+    **/
+   public static List<List<String>> customerSpend(Cafe esql, String from, String to, int limit)
+         throws SQLException, IOException {
+      String query = "SELECT U.login, COUNT(*), SUM(O.total) AS spent FROM Orders O LEFT JOIN Users U ON U.userid = O.userid " +
+            "WHERE O.timeStampRecieved >= ? AND O.timeStampRecieved < ? " +
+            "GROUP BY U.login ORDER BY spent DESC, U.login";
+      // archived spend can lift any customer into the top ones, so only
+      // without archived months does the database pick them
+      if (archive.months(from, to).isEmpty()) {
+         return esql.executeQueryAndReturnResult(query + " LIMIT ?", reportTime(from), reportTime(to), limit);
       }
+      List<List<String>> live = esql.executeQueryAndReturnResult(query, reportTime(from), reportTime(to));
 
-      while (true) {
-         try {
+      List<List<String>> archived = archive.readOrders(from, to);
+      Map<String, BigDecimal[]> totals = new HashMap<String, BigDecimal[]>();
+      for (List<String> order : archived) {
+         accumulate(totals, order.get(1), parseAmount(order.get(4)));
+      }
+      List<List<String>> merged = mergeReport(live, totals);
+      sortByColumnDesc(merged, 2);
+      return firstRows(merged, limit);
+   }
 
-            System.out.printf("Please enter choice for new user type for [%s]\n", login);
-            System.out.println("1. Employee");
-            System.out.println("2. Customer");
-            switch (readChoice()) {
-               case 1:
-                  newType = "Employee";
-                  break;
-               case 2:
-                  newType = "Customer";
-                  break;
-               default:
-                  System.out.println("Please enter valid choice");
-                  break;
-            }
+   // the start of a YYYY-MM-DD report bound, bound as a query parameter
+   static Timestamp reportTime(String date) {
+      return Timestamp.valueOf(date + " 00:00:00");
+   }
 
-            if (newType == null) {
-               throw new SQLException("Re-trying choice ...");
-            }
+   /*
+    * Adds one archived row worth of amount to the (count, sum) kept for key.
+    **/
+   static void accumulate(Map<String, BigDecimal[]> totals, String key, BigDecimal amount) {
+      accumulate(totals, key, 1, amount);
+   }
 
-            break;
-         } catch (Exception e) {
-            continue;
-         }
+   // money is summed in BigDecimal, exact like the numeric sums of the
+   // database
+   static void accumulate(Map<String, BigDecimal[]> totals, String key, long count, BigDecimal amount) {
+      BigDecimal[] t = totals.get(key);
+      if (t == null) {
+         t = new BigDecimal[] { BigDecimal.ZERO, BigDecimal.ZERO };
+         totals.put(key, t);
       }
+      t[0] = t[0].add(BigDecimal.valueOf(count));
+      t[1] = t[1].add(amount);
+   }
 
-      try {
-
-         String query;
-         query = String.format("UPDATE Users SET type = '%s' WHERE login = '%s'", newType, login);
-         esql.executeUpdate(query);
-         System.out.printf("User type updated successfully for user [%s]!\n", login);
+   static BigDecimal parseAmount(String amount) {
+      if (amount == null) {
+         return BigDecimal.ZERO;
+      }
+      return new BigDecimal(amount.trim());
+   }
 
-      } catch (Exception e) {
-         System.out.println("Error updating User, please re-try or contact IT");
+   /*
+    * Merges live (key, count, sum) report rows with archived totals, returning
+    * the combined rows ordered by key.
+    **/
+   static List<List<String>> mergeReport(List<List<String>> live, Map<String, BigDecimal[]> archived) {
+      Map<String, BigDecimal[]> totals = new TreeMap<String, BigDecimal[]>(archived);
+      for (List<String> row : live) {
+         String key = row.get(0) == null ? "" : row.get(0).trim();
+         accumulate(totals, key, parseAmount(row.get(1)).longValueExact(), parseAmount(row.get(2)));
+      }
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for (Map.Entry<String, BigDecimal[]> entry : totals.entrySet()) {
+         List<String> row = new ArrayList<String>();
+         row.add(entry.getKey());
+         row.add(entry.getValue()[0].toPlainString());
+         row.add(entry.getValue()[1].setScale(2, RoundingMode.HALF_UP).toPlainString());
+         merged.add(row);
       }
+      return merged;
+   }
 
+   static void sortByColumnDesc(List<List<String>> rows, final int column) {
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return parseAmount(b.get(column)).compareTo(parseAmount(a.get(column)));
+         }
+      });
    }
 
-   public static void managerUpdateUser(Cafe esql, String login) {
+   static List<List<String>> firstRows(List<List<String>> rows, int limit) {
+      if (rows.size() <= limit) {
+         return rows;
+      }
+      return new ArrayList<List<String>>(rows.subList(0, limit));
+   }
 
-      String editUserLogin;
+   /*
+    * Moves every closed month older than the hot window (cafe.archive.hotMonths,
+    * default 3) out of the Orders/ItemStatus partitions into the local archive,
+    * then makes sure partitions exist for the coming months.
+    **/
+   public static void archiveClosedMonths(Cafe esql) {
 
-      // get user to edit from manager
-      while (true) {
-         try {
-            System.out.println("Please enter a user login to edit");
-            editUserLogin = in.readLine();
+      if (backend != Backend.POSTGRES) {
+         System.out.println("Archiving works on the PostgreSQL month partitions only.");
+         return;
+      }
+
+      int hotMonths = Integer.getInteger("cafe.archive.hotMonths", 3);
+      Calendar cal = Calendar.getInstance();
+      cal.add(Calendar.MONTH, -hotMonths);
+      String oldestHot = String.format("%1$tY_%1$tm", cal);
+
+      List<List<String>> partitions = new ArrayList<List<String>>();
+      try {
+         String query = "SELECT substr(C.relname, 8) FROM pg_inherits H, pg_class C, pg_class P " +
+               "WHERE C.oid = H.inhrelid AND P.oid = H.inhparent AND P.relname = 'orders' " +
+               "AND C.relname ~ '^orders_[0-9]{4}_[0-9]{2}$' ORDER BY 1";
+         partitions = esql.executeQueryAndReturnResult(query);
+      } catch (Exception e) {
+         System.out.println("Unable to list order partitions, please re-try or contact IT");
+         System.err.println(e.getMessage());
+         return;
+      }
 
+      int archivedMonths = 0;
+      for (List<String> partition : partitions) {
+         String month = partition.get(0).trim();
+         if (month.compareTo(oldestHot) >= 0) {
             break;
+         }
+         boolean written = false;
+         try {
+            // detached before it is read and dropped in the same transaction,
+            // so no order or payment can reach the month in between and be
+            // dropped without being archived
+            esql.beginTransaction();
+            esql.executeUpdate(String.format("ALTER TABLE ItemStatus DETACH PARTITION itemstatus_%s", month));
+            esql.executeUpdate(String.format("ALTER TABLE Orders DETACH PARTITION orders_%s", month));
+            List<List<String>> orders = esql.executeQueryAndReturnResult(String.format(
+                  "SELECT O.orderid, U.login, O.paid, O.timeStampRecieved, O.total " +
+                        "FROM orders_%s O LEFT JOIN Users U ON U.userid = O.userid ORDER BY O.orderid",
+                  month));
+            // in the order exportOrders writes them, item names in the
+            // database's collation
+            List<List<String>> items = esql.executeQueryAndReturnResult(String.format(
+                  "SELECT I.orderid, I.orderTimeStamp, M.itemName, I.lastUpdated, " + ItemState.label("I.status") +
+                        ", I.comments, I.price, I.quantity " +
+                        "FROM itemstatus_%s I LEFT JOIN Menu M ON M.itemid = I.itemid " +
+                        "ORDER BY I.orderTimeStamp, I.orderid, M.itemName",
+                  month));
+            if (!orders.isEmpty()) {
+               archive.write(month, orders, items);
+               written = true;
+            }
+            esql.executeUpdate(String.format("DROP TABLE itemstatus_%s", month));
+            esql.executeUpdate(String.format("DROP TABLE orders_%s", month));
+            esql.commitTransaction();
+            if (!orders.isEmpty()) {
+               System.out.printf("Archived %s: %d orders, %d items\n", month, orders.size(), items.size());
+               archivedMonths++;
+            }
          } catch (Exception e) {
-            System.out.println("Please enter an input");
-            continue;
+            esql.rollbackTransaction();
+            // the month is back in the database, it must not be counted twice
+            if (written && !archive.fileFor(month).delete()) {
+               System.err.println("Unable to delete " + archive.fileFor(month));
+            }
+            System.out.printf("Unable to archive %s, it is left in the database\n", month);
+            System.err.println(e.getMessage());
+            break;
          }
       }
 
-      // once have user login, check if the user exists
-      int userExists = 0;
-
       try {
-         String query;
-         query = String.format("SELECT login FROM Users WHERE login = '%s'", editUserLogin);
-
-         userExists = esql.executeQuery(query);
-
+         esql.executeQuery("SELECT ensure_month_partitions(now()::date, (now() + interval '12 months')::date)");
       } catch (Exception e) {
-         System.out.println("ERROR processing user find, please re-try");
+         System.err.println(e.getMessage());
       }
 
-      boolean inMenu = false;
+      System.out.printf("%d month(s) archived to %s\n", archivedMonths, archive.dir.getPath());
+   }// end archiveClosedMonths
 
-      if (userExists > 0) {
+   /**
+    * Creates and seeds the in-process database of the embedded backend. The
+    * schema comes from create_tables_embedded.sql in cafe.sql.dir (default
+    * sql/src) and the Menu and Users rows from the csv files in cafe.data.dir
+    * (default data). Each database is only set up by its first connection.
+    */
+   static class EmbeddedDatabase {
 
-         String userName = editUserLogin;
+      private static final Set<String> created = new HashSet<String>();
 
-         do {
-            inMenu = true;
+      static synchronized void create(String url, Connection connection) throws SQLException, IOException {
+         if (!created.add(url)) {
+            return;
+         }
+         long start = System.currentTimeMillis();
+         File sqlDir = new File(System.getProperty("cafe.sql.dir", "sql/src"));
+         File dataDir = new File(System.getProperty("cafe.data.dir", "data"));
 
-            System.out.printf("Which information would you like to update for user [%s]?\n", userName);
-            System.out.println("1. Login");
-            System.out.println("2. Phone Number");
-            System.out.println("3. Password");
-            System.out.println("4. Favorite Items");
-            System.out.println("5. Change type");
-            System.out.println("6. Go back to Manager Menu");
-            switch (readChoice()) {
-               case 1:
-                  userName = updateLogin(esql, editUserLogin);
-                  break;
-               case 2:
-                  updatePhoneNumber(esql, userName);
-                  break;
-               case 3:
-                  updatePassword(esql, userName);
-                  break;
-               case 4:
-                  updateFavItems(esql, userName);
-                  break;
-               case 5:
-                  updateType(esql, userName);
-                  break;
-               case 6:
-                  inMenu = false;
-                  break;
-               default:
-                  System.out.println("Choice not recognized!");
-                  break;
+         Statement stmt = connection.createStatement();
+         try {
+            for (String sql : readStatements(new File(sqlDir, "create_tables_embedded.sql"))) {
+               stmt.executeUpdate(sql);
             }
-         } while (inMenu);
-
-      } else {
-         System.out.println("Could not find user, please re-try");
+         } finally {
+            stmt.close();
+         }
+         int menu = load(connection, "Menu (itemName, type, price, description, imageURL)",
+               new File(dataDir, "menu.csv"), 5);
+         int users = loadUsers(connection, new File(dataDir, "users.csv"));
+         System.out.printf("Embedded database ready: %d menu items, %d users in %d ms%n",
+               menu, users, System.currentTimeMillis() - start);
       }
 
-   }
+      // the ';' terminated statements of a sql file, without comment lines
+      static List<String> readStatements(File file) throws IOException {
+         List<String> statements = new ArrayList<String>();
+         StringBuilder current = new StringBuilder();
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.trim().startsWith("--")) {
+                  continue;
+               }
+               current.append(line).append('\n');
+               if (line.trim().endsWith(";")) {
+                  String sql = current.toString().trim();
+                  statements.add(sql.substring(0, sql.length() - 1));
+                  current.setLength(0);
+               }
+            }
+         } finally {
+            reader.close();
+         }
+         return statements;
+      }
 
+      // batch inserts a ';' delimited file, the same format COPY reads in
+      // load_data.sql, into table, which may list the columns to fill
+      static int load(Connection connection, String table, File csv, int columns) throws SQLException, IOException {
+         StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES (");
+         for (int i = 0; i < columns; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+         }
+         sql.append(")");
 
+         int rows = 0;
+         connection.setAutoCommit(false);
+         PreparedStatement stmt = connection.prepareStatement(sql.toString());
+         BufferedReader reader = new BufferedReader(new FileReader(csv));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.isEmpty()) {
+                  continue;
+               }
+               String[] fields = line.replace("\r", "").split(";", -1);
+               for (int i = 0; i < columns; i++) {
+                  stmt.setString(i + 1, i < fields.length ? fields[i] : null);
+               }
+               stmt.addBatch();
+               if (++rows % 1000 == 0) {
+                  stmt.executeBatch();
+               }
+            }
+            stmt.executeBatch();
+            connection.commit();
+         } finally {
+            reader.close();
+            stmt.close();
+            connection.setAutoCommit(true);
+         }
+         return rows;
+      }
 
-public static void PlaceOrder(Cafe esql, String login) {
+      // users.csv keeps the favorite items as one comma separated column, split
+      // them into FavoriteItems matching the menu names case insensitively, as
+      // load_data.sql does
+      static int loadUsers(Connection connection, File csv) throws SQLException, IOException {
+         Map<String, Integer> menu = new HashMap<String, Integer>();
+         Statement names = connection.createStatement();
+         ResultSet rs = names.executeQuery("SELECT itemName, itemid FROM Menu");
+         while (rs.next()) {
+            menu.put(rs.getString(1).trim().toLowerCase(), rs.getInt(2));
+         }
+         names.close();
+
+         int rows = 0;
+         connection.setAutoCommit(false);
+         PreparedStatement users = connection.prepareStatement(
+               "INSERT INTO Users (login, phoneNum, password, type) VALUES (?, ?, ?, ?)");
+         PreparedStatement favorites = connection.prepareStatement(
+               "INSERT INTO FavoriteItems (userid, itemid) SELECT userid, ? FROM Users WHERE login = ?");
+         BufferedReader reader = new BufferedReader(new FileReader(csv));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.isEmpty()) {
+                  continue;
+               }
+               String[] fields = Arrays.copyOf(line.replace("\r", "").split(";", -1), 5);
+               users.setString(1, fields[0]);
+               users.setString(2, fields[1]);
+               users.setString(3, fields[2]);
+               users.setString(4, fields[4]);
+               users.addBatch();
+               Set<Integer> added = new HashSet<Integer>();
+               for (String name : (fields[3] == null ? "" : fields[3]).split(",")) {
+                  Integer item = menu.get(name.trim().toLowerCase());
+                  if (item != null && added.add(item)) {
+                     favorites.setInt(1, item);
+                     favorites.setString(2, fields[0]);
+                     favorites.addBatch();
+                  }
+               }
+               // the users of a batch go in before their favorites
+               if (++rows % 1000 == 0) {
+                  users.executeBatch();
+                  favorites.executeBatch();
+               }
+            }
+            users.executeBatch();
+            favorites.executeBatch();
+            connection.commit();
+         } finally {
+            reader.close();
+            users.close();
+            favorites.close();
+            connection.setAutoCommit(true);
+         }
+         return rows;
+      }
+   }// end EmbeddedDatabase
 
-   String paidStatus = "f", timeStampRecieved;
+   /**
+    * Compact, column oriented archive of closed order months. Each month is a
+    * single gzip compressed file holding the Orders rows and then the ItemStatus
+    * rows (with the price they were ordered at) column by column: ids and
+    * timestamps are delta encoded, amounts are kept as exact cents and
+    * repeated strings are dictionary encoded.
+    * Readers only open the files of the months overlapping the requested range.
+    */
+   static class OrderArchive {
 
-   String price;
-   double priceOrder = 0;
-   List<String> itemNames = new ArrayList<>();
-   boolean inMenu = false;
+      private static final int MAGIC = 0xCAFEC01A;
+      // archives in any other layout are refused rather than misread
+      private static final int FORMAT_VERSION = 4;
 
-   do{
+      final File dir;
 
-      inMenu = true;
-      System.out.println("Hello, what items would you like to order today? Please enter the name of the items you would like to order!");
-      System.out.println("1. See Menu");
-      System.out.println("2. Enter item to order");
-      System.out.println("3. Enter 3 to finish ordering!");
-      switch(readChoice()){
-               case 1: outputFullMenu(esql);           break;
-               case 2: {
+      OrderArchive(File dir) {
+         this.dir = dir;
+      }
 
-                     String itemName, tempPrice;
-                     boolean itemInMenu = false;
-                     List<List<String>> priceResult = new ArrayList<List<String>>();
+      File fileFor(String month) {
+         return new File(this.dir, "orders_" + month + ".cca");
+      }
 
-                     while(true){
-                              try{
-                                       System.out.println("Please enter a menu item to order!");
-                                       itemName = in.readLine();
-                                       break;
-                              }catch(Exception e){
-                                       System.out.println("Please enter a valid input!");
-                                       continue;
-                              }
-                     }
+      /**
+       * Writes one month. Order rows are (orderid, login, paid,
+       * timeStampRecieved, total); item rows are (orderid, orderTimeStamp,
+       * itemName, lastUpdated, status, comments, price, quantity).
+       */
+      void write(String month, List<List<String>> orders, List<List<String>> items) throws IOException {
+         if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Unable to create archive directory " + this.dir);
+         }
+         File tmp = new File(this.dir, "orders_" + month + ".tmp");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+               new GZIPOutputStream(new FileOutputStream(tmp))));
+         try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            out.writeInt(orders.size());
+            writeIds(out, orders, 0);
+            writeStrings(out, orders, 1);
+            for (List<String> row : orders) {
+               out.writeByte(row.get(2) == null ? 2 : row.get(2).trim().toLowerCase().startsWith("t") ? 1 : 0);
+            }
+            writeTimes(out, orders, 3);
+            writeAmounts(out, orders, 4);
+
+            out.writeInt(items.size());
+            writeIds(out, items, 0);
+            writeTimes(out, items, 1);
+            writeStrings(out, items, 2);
+            writeTimes(out, items, 3);
+            writeStrings(out, items, 4);
+            writeStrings(out, items, 5);
+            writeAmounts(out, items, 6);
+            for (List<String> row : items) {
+               writeVarLong(out, Long.parseLong(row.get(7).trim()));
+            }
+         } finally {
+            out.close();
+         }
+         File target = fileFor(month);
+         if (target.exists() && !target.delete()) {
+            throw new IOException("Unable to replace " + target);
+         }
+         if (!tmp.renameTo(target)) {
+            throw new IOException("Unable to move " + tmp + " to " + target);
+         }
+      }
 
-                     try{
+      /**
+       * Archived Orders rows with timeStampRecieved in [from, to).
+       */
+      List<List<String>> readOrders(String from, String to) throws IOException {
+         return read(from, to, false);
+      }
 
-                        String query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", itemName);
+      /**
+       * Archived ItemStatus rows whose order time is in [from, to).
+       */
+      List<List<String>> readItems(String from, String to) throws IOException {
+         return read(from, to, true);
+      }
 
-                        if(esql.executeQuery(query) != 0){
-                           itemInMenu = true;
-                        }
-                        
-                     }catch(Exception e){
-                        System.err.println(e.getMessage());
-                     }
+      /**
+       * The Orders rows of one archived month with timeStampRecieved in
+       * [from, to).
+       */
+      List<List<String>> readOrders(String month, String from, String to) throws IOException {
+         return inRange(readMonth(fileFor(month), false), 3, from, to);
+      }
 
-                     if(itemInMenu){
-                       
-                        try{
-                           String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", itemName);
-                           priceResult = esql.executeQueryAndReturnResult(query);
-                           
-                        }catch(Exception e){
-                           System.err.println(e.getMessage());
-                        }
+      /**
+       * The ItemStatus rows of one archived month whose order time is in
+       * [from, to).
+       */
+      List<List<String>> readItems(String month, String from, String to) throws IOException {
+         return inRange(readMonth(fileFor(month), true), 1, from, to);
+      }
 
-                        
-                        tempPrice = priceResult.get(0).get(0);
-                        tempPrice = tempPrice.replaceAll(" ", "");
-                        priceOrder+= Double.parseDouble(tempPrice);
-                        itemNames.add(itemName);
-                     }
-                     else{
-                        System.out.println("The item name you typed did not match our records, please either re-try or retry correctly");
-                     }
+      /**
+       * The archived months (YYYY_MM) overlapping [from, to), oldest first.
+       */
+      List<String> months(String from, String to) {
+         List<String> months = new ArrayList<String>();
+         String[] names = this.dir.list();
+         if (names == null) {
+            return months;
+         }
+         java.util.Arrays.sort(names);
+         String firstMonth = from.substring(0, 7).replace('-', '_');
+         for (String name : names) {
+            if (!name.matches("orders_[0-9]{4}_[0-9]{2}\\.cca")) {
+               continue;
+            }
+            String month = name.substring(7, 14);
+            // prune months that cannot overlap [from, to)
+            if (month.compareTo(firstMonth) < 0 || month.replace('_', '-').compareTo(to) >= 0) {
+               continue;
+            }
+            months.add(month);
+         }
+         return months;
+      }
 
-                  } break;
-                  case 3: inMenu = false;                                        break;
-               default: System.out.println("Please enter a valid choice 1 - 3"); break;
-               }
+      private List<List<String>> read(String from, String to, boolean items) throws IOException {
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (String month : months(from, to)) {
+            result.addAll(inRange(readMonth(fileFor(month), items), items ? 1 : 3, from, to));
+         }
+         return result;
+      }
 
-   }while(inMenu);
+      private static List<List<String>> inRange(List<List<String>> rows, int timeColumn, String from, String to) {
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (List<String> row : rows) {
+            String time = row.get(timeColumn);
+            if (time.compareTo(from) >= 0 && time.compareTo(to) < 0) {
+               result.add(row);
+            }
+         }
+         return result;
+      }
 
-   price = String.valueOf(priceOrder);
+      private List<List<String>> readMonth(File file, boolean items) throws IOException {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(
+               new GZIPInputStream(new FileInputStream(file))));
+         try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+               throw new IOException("Not an order archive: " + file);
+            }
+            int count = in.readInt();
+            List<String[]> columns = new ArrayList<String[]>();
+            columns.add(readIds(in, count));
+            columns.add(readStrings(in, count));
+            String[] paid = new String[count];
+            for (int i = 0; i < count; i++) {
+               byte b = in.readByte();
+               paid[i] = b == 2 ? null : b == 1 ? "t" : "f";
+            }
+            columns.add(paid);
+            columns.add(readTimes(in, count));
+            columns.add(readAmounts(in, count));
+
+            if (items) {
+               count = in.readInt();
+               columns.clear();
+               columns.add(readIds(in, count));
+               columns.add(readTimes(in, count));
+               columns.add(readStrings(in, count));
+               columns.add(readTimes(in, count));
+               columns.add(readStrings(in, count));
+               columns.add(readStrings(in, count));
+               columns.add(readAmounts(in, count));
+               String[] quantities = new String[count];
+               for (int i = 0; i < count; i++) {
+                  quantities[i] = String.valueOf(readVarLong(in));
+               }
+               columns.add(quantities);
+            }
 
-   System.out.printf("Would like to pay for this order now? The total is: %s \n", price);
-   System.out.println("1. Yes");
-   System.out.println("2. No");
-   switch(readChoice()){
-      case 1: paidStatus = "t"; break;
-      case 2: paidStatus = "f"; break;
-      default: System.out.println("Please enter a choice 1 - 2"); break;
-   }
+            List<List<String>> rows = new ArrayList<List<String>>(count);
+            for (int i = 0; i < count; i++) {
+               List<String> row = new ArrayList<String>(columns.size());
+               for (String[] column : columns) {
+                  row.add(column[i]);
+               }
+               rows.add(row);
+            }
+            return rows;
+         } finally {
+            in.close();
+         }
+      }
 
-   List<List<String>> tempORDERID = new ArrayList<List<String>>();
+      private static void writeIds(DataOutputStream out, List<List<String>> rows, int col) throws IOException {
+         long previous = 0;
+         for (List<String> row : rows) {
+            long id = Long.parseLong(row.get(col).trim());
+            writeVarLong(out, id - previous);
+            previous = id;
+         }
+      }
 
-   long now = System.currentTimeMillis();
-   Timestamp time = new Timestamp(now);
-   timeStampRecieved = time.toString();
- 
-   String orderID, orderStatus;
-   orderStatus = "Hasn''t started";
+      private static String[] readIds(DataInputStream in, int count) throws IOException {
+         String[] ids = new String[count];
+         long previous = 0;
+         for (int i = 0; i < count; i++) {
+            previous += readVarLong(in);
+            ids[i] = String.valueOf(previous);
+         }
+         return ids;
+      }
 
-   try{
-      String query;
-      query = String.format("INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES ('%s', '%s', '%s', '%s')", login, paidStatus, timeStampRecieved, price);
-      esql.executeUpdate(query);
+      // timestamps are kept as microseconds since the epoch, delta encoded
+      private static void writeTimes(DataOutputStream out, List<List<String>> rows, int col) throws IOException {
+         long previous = 0;
+         for (List<String> row : rows) {
+            Timestamp time = Timestamp.valueOf(row.get(col).trim());
+            long micros = (time.getTime() / 1000L) * 1000000L + time.getNanos() / 1000;
+            writeVarLong(out, micros - previous);
+            previous = micros;
+         }
+      }
 
-      System.out.println("Order created successfully!");
+      private static String[] readTimes(DataInputStream in, int count) throws IOException {
+         String[] times = new String[count];
+         long previous = 0;
+         for (int i = 0; i < count; i++) {
+            previous += readVarLong(in);
+            Timestamp time = new Timestamp((previous / 1000000L) * 1000L);
+            time.setNanos((int) (previous % 1000000L) * 1000);
+            times[i] = time.toString();
+         }
+         return times;
+      }
 
-   }catch(Exception e){
-         System.out.println("Unable to update order, please re-try or contact IT");
-        
-         return;
-   }
+      private static void writeStrings(DataOutputStream out, List<List<String>> rows, int col) throws IOException {
+         Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+         int[] codes = new int[rows.size()];
+         for (int i = 0; i < rows.size(); i++) {
+            String value = rows.get(i).get(col);
+            if (value == null) {
+               continue; // code 0 is null
+            }
+            value = value.trim();
+            Integer code = dictionary.get(value);
+            if (code == null) {
+               code = dictionary.size() + 1;
+               dictionary.put(value, code);
+            }
+            codes[i] = code;
+         }
+         out.writeInt(dictionary.size());
+         for (String value : dictionary.keySet()) {
+            out.writeUTF(value);
+         }
+         for (int code : codes) {
+            writeVarLong(out, code);
+         }
+      }
 
-   try{
-         String query;
-         query = String.format("SELECT orderid FROM Orders WHERE login = '%s' AND timeStampRecieved = '%s'", login, timeStampRecieved);
-         tempORDERID = esql.executeQueryAndReturnResult(query);
+      private static String[] readStrings(DataInputStream in, int count) throws IOException {
+         String[] dictionary = new String[in.readInt() + 1];
+         for (int i = 1; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+         }
+         String[] values = new String[count];
+         for (int i = 0; i < count; i++) {
+            values[i] = dictionary[(int) readVarLong(in)];
+         }
+         return values;
+      }
 
-   }catch(Exception e){
-         System.err.println(e.getMessage());
-   }
+      // amounts are numeric(10,2) in the database, stored as a null flag and
+      // then the exact cents
+      private static void writeAmounts(DataOutputStream out, List<List<String>> rows, int col) throws IOException {
+         for (List<String> row : rows) {
+            String value = row.get(col);
+            out.writeBoolean(value != null);
+            if (value != null) {
+               writeVarLong(out, new BigDecimal(value.trim()).movePointRight(2).longValueExact());
+            }
+         }
+      }
 
-   orderID = tempORDERID.get(0).get(0);
-   orderID = orderID.replaceAll(" ", "");
+      private static String[] readAmounts(DataInputStream in, int count) throws IOException {
+         String[] values = new String[count];
+         for (int i = 0; i < count; i++) {
+            values[i] = in.readBoolean() ? BigDecimal.valueOf(readVarLong(in), 2).toPlainString() : null;
+         }
+         return values;
+      }
 
-   for(int i = 0; i < itemNames.size(); i++){
-   
-      try{
-         String query = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status) VALUES ('%s', '%s', '%s', '%s')", orderID, itemNames.get(i), timeStampRecieved, orderStatus);
-         esql.executeUpdate(query);
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+      // zig-zag varint, so small deltas of either sign take one or two bytes
+      private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+         long v = (value << 1) ^ (value >> 63);
+         while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+         }
+         out.writeByte((int) v);
       }
-   }
 
-   System.out.println("Items orderd successfully!");
+      private static long readVarLong(DataInputStream in) throws IOException {
+         long v = 0;
+         int shift = 0;
+         int b;
+         do {
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+         } while ((b & 0x80) != 0);
+         return (v >>> 1) ^ -(v & 1);
+      }
+   }// end OrderArchive
 
-   
-}
+   /*
+    * The keyboard input of the sessions. A thread running a scripted session
+    * reads its scenario instead of the console (see LoadDriver). Reading past
+    * the end of the input throws EndOfInput, which ends the session.
+    */
+   static class SessionInput extends BufferedReader {
+      private final ThreadLocal<BufferedReader> scripted = new ThreadLocal<BufferedReader>();
 
+      SessionInput(Reader console) {
+         super(console);
+      }
 
-   public static void UpdateOrder(Cafe esql, String login) {
+      // reads input on the calling thread, or the console again when null
+      void use(BufferedReader input) {
+         scripted.set(input);
+      }
 
-      String query, loginType;
-      List<List<String>> result = new ArrayList<List<String>>();
+      // whether the calling thread reads a script rather than the console
+      boolean scripted() {
+         return scripted.get() != null;
+      }
 
-      // run query to get the type of current user
-      try {
+      public String readLine() throws IOException {
+         BufferedReader input = scripted.get();
+         String line = input == null ? super.readLine() : input.readLine();
+         if (line == null) {
+            throw new EndOfInput();
+         }
+         return line;
+      }
+   }// end SessionInput
 
-         // query to get the typefrom the current user
-         query = String.format("SELECT type FROM Users WHERE login = '%s'", login);
-         result = esql.executeQueryAndReturnResult(query);
+   /*
+    * Thrown when a session reads past the end of its input. It is an Error,
+    * like ThreadDeath, so the catch (Exception) retry loops of the screens
+    * cannot swallow it and ask again forever.
+    */
+   static class EndOfInput extends Error {
+      private static final long serialVersionUID = 1L;
 
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
+      EndOfInput() {
+         super("End of input");
       }
+   }// end EndOfInput
 
-      boolean inMenu = false;
-
-  	   loginType = result.get(0).get(0);
-	   loginType = loginType.replaceAll(" ", "");
+   /*
+    * Standard out and err of the sessions. A thread running a scripted
+    * session writes to its own target, or nowhere; other threads write to the
+    * console.
+    */
+   static class SessionOutput extends OutputStream {
+      private static final ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+      static final OutputStream DISCARD = new OutputStream() {
+         public void write(int b) {
+         }
 
-      if(loginType.equals("Customer")){
-         
-         do{
-            inMenu = true;
+         public void write(byte[] b, int off, int len) {
+         }
+      };
+      private final OutputStream console;
 
-            System.out.printf("Welcome to update order user [%s]!\n", login);
-            System.out.println("Choose an option");
-            System.out.println("1. Modify Order");
-            System.out.println("2. See order history (only 5 recent)");
-            System.out.println("3. Return to main menu");
+      SessionOutput(OutputStream console) {
+         this.console = console;
+      }
 
-            switch(readChoice()){
-               case 1: modifyOrder(esql , login);    break;
-               case 2: outLast5Order(esql, login);    break;
-               case 3: inMenu = false; break;
-               default: System.out.println("Option does not exist, choose 1 - 3 !"); break;
-            }
+      // sends the output of the calling thread to out, or the console when null
+      static void redirect(OutputStream out) {
+         target.set(out);
+      }
 
+      private OutputStream out() {
+         OutputStream out = target.get();
+         return out == null ? console : out;
+      }
 
-         }while(inMenu);
+      public void write(int b) throws IOException {
+         out().write(b);
+      }
 
+      public void write(byte[] b, int off, int len) throws IOException {
+         out().write(b, off, len);
+      }
 
+      public void flush() throws IOException {
+         out().flush();
       }
-      else if(!loginType.equals("Customer")){
+   }// end SessionOutput
 
-         do{
+   /*
+    * Formats results as aligned columns into a buffer reused between screens
+    * and writes it out once per screen, instead of once per cell. On a
+    * terminal, results longer than cafe.page.rows rows (default 40, 0 to
+    * never page) are shown a page at a time.
+    */
+   static class TableRenderer {
+      private static final int PAGE_ROWS = Integer.getInteger("cafe.page.rows", 40);
+      // written out early past this size, so huge results do not pile up
+      private static final int FLUSH_CHARS = 64 * 1024;
+      private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+         protected StringBuilder initialValue() {
+            return new StringBuilder(8192);
+         }
+      };
 
-            inMenu = true;
+      /*
+       * Prints rows under header, or without one when header is null;
+       * returns false when the user stopped paging before the last row.
+       * Only sessions typed at a console page; scripted ones never do.
+       */
+      static boolean print(List<String> header, List<List<String>> rows) {
+         return print(header, rows, System.console() != null && !in.scripted());
+      }
 
-            System.out.printf("Welcome to employee/manager to update order. Current user ID: [%s]!\n", login);
-            System.out.println("Choose an option");
-	    System.out.println("1. Modify Order");
-	    System.out.println("2. See order history (only 5 recent)");
-	    System.out.println("3. See all orders within the last day");
-	    System.out.println("4. Change order paid status");
-	    System.out.println("5. Return to main menu");
-		
-            switch(readChoice()){
-               case 1: modifyOrder(esql, login);	  break;
-               case 2: outLast5Order(esql, login);        break;
-               case 3: outputOrderHistroy(esql, login);   break;
-	       case 4: changeOrderPaidStatus(esql, login);break;
-	       case 5: inMenu = false; 			  break;
-               default: System.out.println("Option does not exist, choose 1 - 5!"); break;
-            }
+      /*
+       * Prints rows under header without paging, for reports that are not
+       * part of a session.
+       */
+      static void printAll(List<String> header, List<List<String>> rows) {
+         print(header, rows, false);
+      }
 
+      private static boolean print(List<String> header, List<List<String>> rows, boolean interactive) {
+         int[] widths = widths(header, rows);
+         boolean paging = PAGE_ROWS > 0 && interactive;
+         StringBuilder out = buffer.get();
+         out.setLength(0);
+         if (header != null) {
+            appendRow(out, header, widths);
+            for (int j = 0; j < widths.length; j++) {
+               pad(out.append(j == 0 ? "" : "  "), '-', widths[j]);
+            }
+            out.append('\n');
+         }
+         for (int i = 0; i < rows.size(); i++) {
+            appendRow(out, rows.get(i), widths);
+            if (paging && (i + 1) % PAGE_ROWS == 0 && i + 1 < rows.size()) {
+               out.append("-- ").append(i + 1).append(" of ").append(rows.size())
+                     .append(" rows, press enter for more or q to stop --");
+               flush(out);
+               if (!nextPage()) {
+                  return false;
+               }
+            } else if (out.length() >= FLUSH_CHARS) {
+               flush(out);
+            }
+         }
+         flush(out);
+         return true;
+      }
 
-         }while(inMenu);
+      private static int[] widths(List<String> header, List<List<String>> rows) {
+         int columns = header == null ? 0 : header.size();
+         for (List<String> row : rows) {
+            columns = Math.max(columns, row.size());
+         }
+         int[] widths = new int[columns];
+         if (header != null) {
+            measure(widths, header);
+         }
+         for (List<String> row : rows) {
+            measure(widths, row);
+         }
+         return widths;
+      }
 
+      private static void measure(int[] widths, List<String> row) {
+         for (int j = 0; j < row.size(); j++) {
+            widths[j] = Math.max(widths[j], trimmedLength(row.get(j)));
+         }
+      }
 
+      // the cells of row, each padded to its column but the last
+      private static void appendRow(StringBuilder out, List<String> row, int[] widths) {
+         for (int j = 0; j < row.size(); j++) {
+            String cell = row.get(j);
+            int length = trimmedLength(cell);
+            if (j > 0) {
+               out.append("  ");
+            }
+            if (cell != null) {
+               out.append(cell, 0, length);
+            }
+            if (j < row.size() - 1) {
+               pad(out, ' ', widths[j] - length);
+            }
+         }
+         out.append('\n');
       }
 
+      private static StringBuilder pad(StringBuilder out, char c, int count) {
+         for (int k = 0; k < count; k++) {
+            out.append(c);
+         }
+         return out;
+      }
 
-   }//end update order 
+      // the length of cell without the padding of char(n) columns
+      private static int trimmedLength(String cell) {
+         if (cell == null) {
+            return 0;
+         }
+         int length = cell.length();
+         while (length > 0 && cell.charAt(length - 1) == ' ') {
+            length--;
+         }
+         return length;
+      }
 
-   public static void modifyOrder(Cafe esql, String login){
+      private static void flush(StringBuilder out) {
+         System.out.print(out);
+         System.out.flush();
+         out.setLength(0);
+      }
 
-      String orderID, query, paidStatus, itemID, itemName, itemStatus;
-      List<List<String>> result = new ArrayList<List<String>>();
-      paidStatus = "t";
-      boolean itemFound = false;
-      while (true) {
+      // waits for the user after a page, false when they want no more
+      private static boolean nextPage() {
          try {
-            System.out.print("Enter order ID to modify the order: ");
-            orderID = in.readLine();
-            // if(nameName.length() > 50){
-            // throw new SQLException("Name exceeds limit. Please try a smaller name.");
-            // }
-            break;
-         } catch (Exception e) {
-            System.out.println("Please input an orderID");
-            continue;
+            return !in.readLine().trim().equalsIgnoreCase("q");
+         } catch (IOException e) {
+            return false;
          }
       }
+   }// end TableRenderer
 
-      try {
-         query = String.format("SELECT paid FROM Orders WHERE orderid = '%s' AND login = '%s'", orderID, login);
-         //result = esql.executeQueryAndReturnResult(query);
-         if(esql.executeQuery(query) == 0){
-		throw new SQLException();
-	 }
-	 result = esql.executeQueryAndReturnResult(query);
- 	 itemFound = true;
-      } catch (Exception e) {
-         System.out.println("This order ID either does not exist, or does not belong to you.");
+   /*
+    * A read-only standby of the primary, reached over its own connection.
+    * Its replay position and lag are read at most every cafe.replica.checkMs
+    * (default 1000), or sooner when a read needs a newer position; a replica
+    * that cannot be reached is skipped for cafe.replica.retryMs (default
+    * 30000).
+    */
+   static class Replica {
+      private static final long MAX_LAG_MS = Long.getLong("cafe.replica.maxLagMs", 5000);
+      private static final long CHECK_MS = Long.getLong("cafe.replica.checkMs", 1000);
+      private static final long RETRY_MS = Long.getLong("cafe.replica.retryMs", 30000);
+
+      private final String url;
+      private final Properties props;
+      private Connection connection = null;
+      // WAL position replayed and replay lag, as of checkedAt
+      private long replayedLsn = -1, lagMs = 0, checkedAt = 0;
+      private long downUntil = 0;
+
+      Replica(String url, Properties props) {
+         this.url = url;
+         this.props = props;
       }
-	
-	if(itemFound){
-		paidStatus = result.get(0).get(0);
-     		 paidStatus = paidStatus.replaceAll(" ", "");
-     		// System.out.println("paidStatus: " + paidStatus + "test");
-	}
-      if(!paidStatus.equals("t")){ // if the item status of the orderID is not paid
 
-         //get the orders placed for a specific orderID
+      // the replica's connection when it is up, has replayed lsn and is not
+      // lagging; null otherwise
+      Connection connectionAtLeast(long lsn) {
+         long now = System.currentTimeMillis();
+         if (now < downUntil) {
+            return null;
+         }
          try {
-            query = String.format("SELECT itemName, lastUpdated, status FROM ItemStatus WHERE orderid = '%s'", orderID);
-            result = esql.executeQueryAndReturnResult(query);
-            
-         } catch (Exception e) {
-            System.out.println("ERROR: Unable to find orderID");
+            if (connection == null) {
+               connection = DriverManager.getConnection(url, props);
+               checkedAt = 0;
+            }
+            if (now - checkedAt >= CHECK_MS || replayedLsn < lsn) {
+               check(now);
+            }
+         } catch (SQLException e) {
+            failed(e);
+            return null;
          }
+         return replayedLsn >= lsn && lagMs <= MAX_LAG_MS ? connection : null;
+      }
 
-         System.out.println("For this order ID, you ordered the following items below");
-         
-         for(int i = 0; i < result.size(); i++){
-            for(int j = 0; j < result.get(i).size(); j++){
-                  System.out.printf(result.get(i).get(j) + " ");
+      private void check(long now) throws SQLException {
+         Statement stmt = createStatement(connection);
+         try {
+            // no lag while everything received is replayed, else the age of
+            // the last transaction replayed
+            ResultSet rs = stmt.executeQuery("SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()::text, " +
+                  "CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+                  "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END");
+            rs.next();
+            if (!rs.getBoolean(1)) {
+               System.err.println("Not reading from " + url + ", it is not a standby");
+               markDown(Long.MAX_VALUE);
+               return;
             }
-            System.out.println();
+            replayedLsn = parseLsn(rs.getString(2));
+            lagMs = rs.getLong(3);
+            checkedAt = now;
+         } finally {
+            stmt.close();
          }
+      }
 
-         int check; 
-         while (true) {
+      // skips the replica for a while after it lost its connection; other
+      // errors, such as a bad query or a local one wrapped in an
+      // SQLException, leave it up
+      void failed(SQLException e) {
+         if (isConnectionLost(e)) {
+            markDown(System.currentTimeMillis() + RETRY_MS);
+         }
+      }
+
+      private void markDown(long until) {
+         downUntil = until;
+         close();
+      }
+
+      void close() {
+         if (connection != null) {
             try {
-               System.out.println("Which item would you like to modify?");
+               connection.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+            connection = null;
+         }
+      }
 
-               for(int i = 0; i < result.size(); i++){
-                  System.out.printf("%d. " + result.get(i).get(0), i);
-                  System.out.println();
+      // a WAL position printed as hi/lo hex, e.g. 0/16B3748
+      static long parseLsn(String lsn) {
+         if (lsn == null) {
+            return -1;
+         }
+         int slash = lsn.indexOf('/');
+         return Long.parseLong(lsn.substring(0, slash), 16) << 32 | Long.parseLong(lsn.substring(slash + 1), 16);
+      }
+   }// end Replica
+
+   /*
+    * Results of read queries, shared by the sessions of the process, by
+    * query and parameters. A result is kept for at most cafe.cache.ttlMs and
+    * at most cafe.cache.maxEntries are kept, dropping the least recently
+    * used. Results are tagged with the tables their query names; writes
+    * through executeUpdate and executeBatch drop the results of the table
+    * they write, and of the tables it cascades to. Writes by other
+    * processes are only seen once a result expires.
+    */
+   static class QueryCache {
+      static final QueryCache SHARED = new QueryCache(Integer.getInteger("cafe.cache.maxEntries", 1000),
+            Long.getLong("cafe.cache.ttlMs", 5000));
+      private static final Set<String> TABLES = new HashSet<String>(
+            Arrays.asList("users", "menu", "orders", "itemstatus", "favoriteitems"));
+      // tables with rows that change with another's by ON UPDATE/DELETE CASCADE
+      private static final Map<String, String> CASCADES = new HashMap<String, String>();
+      static {
+         CASCADES.put("users", "favoriteitems");
+         CASCADES.put("menu", "favoriteitems");
+      }
+
+      static class Result {
+         final List<String> header;
+         final List<List<String>> rows;
+         final Set<String> tables;
+         final long created = System.currentTimeMillis();
+
+         Result(List<String> header, List<List<String>> rows, Set<String> tables) {
+            this.header = header;
+            this.rows = Collections.unmodifiableList(rows);
+            this.tables = tables;
+         }
+      }
+
+      final AtomicLong hits = new AtomicLong();
+      final AtomicLong misses = new AtomicLong();
+      final AtomicLong evicted = new AtomicLong();
+      final AtomicLong invalidated = new AtomicLong();
+      final AtomicLong expired = new AtomicLong();
+      private final int maxEntries;
+      private final long ttlMs;
+      private final LinkedHashMap<List<Object>, Result> results;
+      // bumped by every write of a table, so a result read while one ran is
+      // not cached
+      private final Map<String, Long> versions = new HashMap<String, Long>();
+
+      QueryCache(final int maxEntries, long ttlMs) {
+         this.maxEntries = maxEntries;
+         this.ttlMs = ttlMs;
+         this.results = new LinkedHashMap<List<Object>, Result>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Result> eldest) {
+               if (size() > maxEntries) {
+                  evicted.incrementAndGet();
+                  return true;
                }
-               System.out.println("Please input the number for item:");
-               check = Integer.parseInt(in.readLine());
-               if(check < 0 || check > result.size()-1){
-                  throw new SQLException();
+               return false;
+            }
+         };
+      }
+
+      // the tables a statement names, month partitions as their table
+      static Set<String> tables(String sql) {
+         return tables(sql, false);
+      }
+
+      // the table a write statement writes, the first it names (INSERT
+      // INTO t, UPDATE t, DELETE FROM t, ALTER/DROP TABLE t), and those it
+      // cascades to; tables its subqueries read are left cached
+      static Set<String> written(String sql) {
+         return tables(sql, true);
+      }
+
+      private static Set<String> tables(String sql, boolean first) {
+         Set<String> tables = new HashSet<String>();
+         for (String word : sql.toLowerCase().split("\\W+")) {
+            int cut = word.indexOf('_');
+            String table = cut < 0 ? word : word.substring(0, cut);
+            if (TABLES.contains(table)) {
+               tables.add(table);
+               if (CASCADES.containsKey(table)) {
+                  tables.add(CASCADES.get(table));
+               }
+               if (first) {
+                  break;
                }
-               break;
-            } catch (Exception e) {
-               System.out.println("The number you inputted was not in the menu listed above.");
-               continue;
             }
          }
-         
-         itemName = result.get(check).get(0);
-         itemName = itemName.replaceAll("\\s{2,}", "");
-         //System.out.println("ItemName: " + itemName);
-         boolean inMenu = false;
-         //see if the itemName the user selected is in the menu
-         try {
+         return tables;
+      }
 
-            query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", itemName);
+      synchronized Result get(List<Object> key) {
+         Result result = this.results.get(key);
+         if (result != null && System.currentTimeMillis() - result.created > this.ttlMs) {
+            this.results.remove(key);
+            this.expired.incrementAndGet();
+            result = null;
+         }
+         (result == null ? this.misses : this.hits).incrementAndGet();
+         return result;
+      }
 
-            if(esql.executeQuery(query) == 0){
-               throw new SQLException();
-            }
+      // the version of a set of tables, to pass to put
+      synchronized long version(Set<String> tables) {
+         long version = 0;
+         for (String table : tables) {
+            Long written = this.versions.get(table);
+            version += written == null ? 0 : written;
+         }
+         return version;
+      }
 
-            inMenu = true;
-            
-         } catch (Exception e) {
-            System.out.println("ERROR: ItemName you choose is not in menu ... please re-try");
+      // caches a result, unless its tables were written since version
+      synchronized void put(List<Object> key, Result result, long version) {
+         if (this.maxEntries > 0 && version(result.tables) == version) {
+            this.results.put(key, result);
+         }
+      }
 
+      synchronized void invalidate(Set<String> tables) {
+         if (tables.isEmpty()) {
+            return;
          }
+         for (String table : tables) {
+            Long written = this.versions.get(table);
+            this.versions.put(table, written == null ? 1 : written + 1);
+         }
+         Iterator<Result> cached = this.results.values().iterator();
+         while (cached.hasNext()) {
+            if (!Collections.disjoint(cached.next().tables, tables)) {
+               cached.remove();
+               this.invalidated.incrementAndGet();
+            }
+         }
+      }
 
+      String stats() {
+         long hits = this.hits.get();
+         long lookups = hits + this.misses.get();
+         return String.format("Query cache: %d hits of %d lookups (%.1f%%), %d evicted, %d invalidated, %d expired",
+               hits, lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups, this.evicted.get(),
+               this.invalidated.get(), this.expired.get());
+      }
+   }// end QueryCache
 
+   /*
+    * A Bloom filter of strings: mightContain is false only for strings never
+    * added, and true for others about once in a hundred times when it holds
+    * as many strings as it was sized for.
+    */
+   static class BloomFilter {
+      private static final int HASHES = 7;
+      private final long[] bits;
 
-         if(inMenu){
+      BloomFilter(int expected) {
+         // ten bits a string
+         this.bits = new long[Math.max(16, expected * 10 / 64 + 1)];
+      }
 
-            try {
-               query = String.format("SELECT status FROM ItemStatus WHERE orderid = '%s' AND itemName = '%s'", orderID, itemName);
+      synchronized void add(String value) {
+         long hash = hash(value);
+         for (int i = 0; i < HASHES; i++) {
+            long bit = bit(hash, i);
+            this.bits[(int) (bit >>> 6)] |= 1L << bit;
+         }
+      }
 
-               result = esql.executeQueryAndReturnResult(query);
-               
-            } catch (Exception e) {
-               System.out.println("ERROR: Unable to retreive records, please contact the devs or retry again. Thank you.");
-   
+      synchronized boolean mightContain(String value) {
+         long hash = hash(value);
+         for (int i = 0; i < HASHES; i++) {
+            long bit = bit(hash, i);
+            if ((this.bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+               return false;
             }
+         }
+         return true;
+      }
 
-            itemStatus = result.get(0).get(0);
-            itemStatus = itemStatus.replaceAll("\\s{2,}", "");
-	    //System.out.println("itemStatus: " + itemStatus +"test");
-            if(itemStatus.equals("Hasn't started")){
-               boolean tempMenu = false;
+      // the i-th of the bits of a string, from the two halves of its hash
+      private long bit(long hash, int i) {
+         int combined = (int) hash + i * (int) (hash >>> 32);
+         return (combined & 0x7fffffffL) % (this.bits.length * 64L);
+      }
 
-               do{
+      // 64 bit FNV-1a
+      private static long hash(String value) {
+         long hash = 0xcbf29ce484222325L;
+         for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+         }
+         return hash;
+      }
+   }// end BloomFilter
 
-                  tempMenu = true;
+   /*
+    * The logins and phone numbers in Users, as Bloom filters shared by the
+    * sessions of the process: loaded once by prefetchUserIndex and added to
+    * by this process's writes. A value not in a filter is free, unless
+    * another till took it since; a value in one may have been changed since
+    * or be a false positive, so it is looked up. The UNIQUE constraints
+    * decide either way. Values are trimmed, as char(n) compares them.
+    */
+   static class UserIndex {
+      // set once by prefetchUserIndex
+      static CompletableFuture<UserIndex> loaded = null;
+
+      private final BloomFilter logins;
+      private final BloomFilter phones;
+
+      UserIndex(List<List<String>> users) {
+         // room to grow to twice the users
+         this.logins = new BloomFilter(2 * users.size());
+         this.phones = new BloomFilter(2 * users.size());
+         for (List<String> user : users) {
+            this.logins.add(user.get(0).trim());
+            if (user.get(1) != null) {
+               this.phones.add(user.get(1).trim());
+            }
+         }
+      }
 
-                  System.out.printf("You are now modifying item [%s] for orderID [%s]\n", itemName, orderID);
-                  System.out.println("1. Would you like to see the menu?");
-                  System.out.println("2. Modify order to a new order");
-                  System.out.println("3. I changed my mind, I wanna keep the order!");
-                  switch(readChoice()){
-                     case 1: outputFullMenu(esql); break;
-                     case 2: {
+      // the index once loaded, or null while it is loading or if it failed to
+      private static synchronized UserIndex get() {
+         return ready(loaded);
+      }
 
-                        String newMenuItem, temp;
-                        float previousPrice, newPrice;
-                        boolean inMenuTwo = false;
+      static boolean mightHaveLogin(String login) {
+         UserIndex index = get();
+         return index == null || index.logins.mightContain(login.trim());
+      }
 
-                        while(true){
-                           try{
+      static boolean mightHavePhone(String phone) {
+         UserIndex index = get();
+         return index == null || index.phones.mightContain(phone.trim());
+      }
 
-                              System.out.println("Please enter new item name from menu to replace order!");
-                              newMenuItem = in.readLine();
+      // records a login and phone number that were written, either may be
+      // null; writes made while the index loads may be missed like other
+      // tills' writes
+      static void add(String login, String phone) {
+         UserIndex index = get();
+         if (index != null && login != null) {
+            index.logins.add(login.trim());
+         }
+         if (index != null && phone != null) {
+            index.phones.add(phone.trim());
+         }
+      }
+   }// end UserIndex
 
-                              break;
-   
-                           }catch(Exception e){
-                              System.out.println("Please input an item!");
-                              continue;
-                           }
-                        }
+   /*
+    * Hands out ids from blocks reserved on a sequence that steps by the block
+    * size (see create_tables.sql): one nextval reserves its value and the
+    * ones below the next step for this process, so an order knows its id
+    * before anything of it is written. Ids left in a block when the process
+    * exits are never used.
+    */
+   static class IdAllocator {
+      static final IdAllocator ORDERS = new IdAllocator("orders_orderid_seq");
 
-                        try{
-                           query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", newMenuItem);
-                           if(esql.executeQuery(query) == 0){
-                              throw new SQLException();
-                           }
-                           inMenuTwo = true;
-                        }catch(Exception e){
-                           System.out.println("Item is not in the menu, please re-try!");
-                        }
-                        
-                        if(inMenuTwo){
+      private final String sequence;
+      private long next;
+      private long limit;
 
-                           try{
-                              query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", itemName);
-                              result = esql.executeQueryAndReturnResult(query);
+      IdAllocator(String sequence) {
+         this.sequence = sequence;
+      }
 
-                           }catch(Exception e){
-                              System.out.println("Unable to retrive price, please re-try, or contact devs");
-			      System.err.println(e.getMessage());
-                           }
+      synchronized int nextId(Cafe esql) throws SQLException {
+         if (next >= limit) {
+            reserve(esql.executeQueryAndReturnResult(reserveQuery(), sequence));
+         }
+         return (int) next++;
+      }
 
-                           temp = result.get(0).get(0);
-                           temp = temp.replaceAll(" ", "");
-                           previousPrice = Float.parseFloat(temp);
+      // the same, reserving on a connection of the caller's own
+      synchronized int nextId(Connection connection) throws SQLException {
+         if (next >= limit) {
+            PreparedStatement stmt = prepare(connection, reserveQuery(), new Object[] { sequence });
+            try {
+               reserve(readResult(stmt.executeQuery()));
+            } finally {
+               stmt.close();
+            }
+         }
+         return (int) next++;
+      }
 
-                           try{
-                              query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", newMenuItem);
-                              result = esql.executeQueryAndReturnResult(query);
+      private String reserveQuery() {
+         return String.format("SELECT nextval('%s'), increment FROM information_schema.sequences WHERE sequence_name = ?",
+               sequence);
+      }
 
-                           }catch(Exception e){
-                              System.out.println("Unable to retrieve price, please re-try, or contact devs");
-			      System.err.println(e.getMessage());
-                           }
+      private void reserve(List<List<String>> block) throws SQLException {
+         if (block.isEmpty()) {
+            throw new SQLException("No sequence " + sequence);
+         }
+         next = Long.parseLong(block.get(0).get(0).trim());
+         limit = next + Long.parseLong(block.get(0).get(1).trim());
+      }
+   }// end IdAllocator
 
-                           temp = result.get(0).get(0);
-                           temp = temp.replaceAll(" ", "");
-                           newPrice = Float.parseFloat(temp);
+   /*
+    * Orders taken while the database was unreachable, appended to a
+    * memory-mapped file (cafe.journal.file) as records framed by their
+    * length and CRC. An append returns once its record is forced to disk; a
+    * force covers every record appended while the one before it ran, so
+    * concurrent appends share them (group commit). A background thread
+    * replays the records into Orders and ItemStatus once the database
+    * answers again, at the unit prices the orders were taken at, each order
+    * in a transaction of its own, and deletes the file
+    * when it holds no more. Replayed orders are matched by orderKey, so a
+    * record replayed twice is still placed once. A record the database
+    * keeps refusing, say for a user or menu item deleted since, is moved to
+    * the dead letter file (cafe.journal.failed) after REPLAY_ATTEMPTS tries,
+    * so the records behind it still drain.
+    */
+   static class OrderJournal {
+      private static final int MAGIC = 0x43414a32;
+      // magic and the offset of the first record not yet replayed
+      private static final int HEADER = 8;
+      static final File FILE = new File(System.getProperty("cafe.journal.file", "orders.journal"));
+      static final int SIZE = Integer.getInteger("cafe.journal.sizeKb", 1024) * 1024;
+      static final long REPLAY_MS = Long.getLong("cafe.journal.replayMs", 5000);
+      static final File FAILED = new File(System.getProperty("cafe.journal.failed", "orders.journal.failed"));
+      static final int REPLAY_ATTEMPTS = Integer.getInteger("cafe.journal.replayAttempts", 3);
+
+      // the open journal, while it holds orders not replayed yet; guarded by
+      // OrderJournal.class, like the fields of the journal
+      private static OrderJournal journal = null;
+      private static String url = null;
+      private static Properties properties = null;
+
+      private final RandomAccessFile file;
+      private final FileLock lock;
+      private final MappedByteBuffer buffer;
+      // the first record not replayed, the end of the records, and how far
+      // they are forced to disk
+      private int replayed;
+      private int written;
+      private int forced;
+      private boolean forcing = false;
+      // failed replays of the records still in the journal, by orderKey;
+      // only touched by replay
+      private final Map<UUID, Integer> failures = new HashMap<UUID, Integer>();
+
+      // one journaled order, with the rows that place it
+      private static class Record {
+         final byte[] bytes;
+         final int end;
+         final UUID orderKey;
+         final Object[] order;
+         final List<Object[]> items = new ArrayList<Object[]>();
+         final Object[] total;
+
+         Record(byte[] bytes, int end, UUID orderKey, Object[] order, Object[] total) {
+            this.bytes = bytes;
+            this.end = end;
+            this.orderKey = orderKey;
+            this.order = order;
+            this.total = total;
+         }
+      }
 
-                           float totalPrice = newPrice - previousPrice;
+      private OrderJournal() throws IOException {
+         boolean created = !FILE.exists();
+         this.file = new RandomAccessFile(FILE, "rw");
+         try {
+            this.lock = this.file.getChannel().tryLock();
+            if (this.lock == null) {
+               throw new IOException("The order journal " + FILE + " is in use by another till");
+            }
+            // orders of another layout are left for someone to look at
+            int magic = this.file.length() >= 4 ? this.file.readInt() : 0;
+            if (magic != MAGIC && magic != 0) {
+               throw new IOException("The order journal " + FILE + " is not in the current format");
+            }
+            this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                  Math.max(SIZE, created ? 0 : (int) this.file.length()));
+         } catch (IOException e) {
+            this.file.close();
+            throw e;
+         }
+         if (created || this.buffer.getInt(0) != MAGIC) {
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, HEADER);
+         }
+         this.replayed = this.buffer.getInt(4);
+         // the records end at the first one that is missing or torn
+         int position = this.replayed;
+         while (position + 8 <= this.buffer.capacity()) {
+            int length = this.buffer.getInt(position);
+            if (length <= 0 || position + 8 + length > this.buffer.capacity()
+                  || this.buffer.getInt(position + 4) != crc(position + 8, length)) {
+               break;
+            }
+            position += 8 + length;
+         }
+         this.written = position;
+         this.forced = position;
+      }
 
-                           String newOrderPriceUpdate = String.valueOf(totalPrice);
-                           
-                           try{
-                              query = String.format("UPDATE Orders SET total = '%s' WHERE orderid = '%s'", newOrderPriceUpdate, orderID);
-                              esql.executeUpdate(query);
+      private int crc(int position, int length) {
+         CRC32 crc = new CRC32();
+         for (int i = 0; i < length; i++) {
+            crc.update(this.buffer.get(position + i));
+         }
+         return (int) crc.getValue();
+      }
 
-                           }catch(Exception e){
-                              System.out.println("Unable to update order, please re-try, or contact devs");
-			      System.err.println(e.getMessage());
-                           }
+      /*
+       * Remembers where to replay to, and starts replaying the journal an
+       * earlier run left behind. Only the first call counts.
+       */
+      static synchronized void start(String url, Properties properties) {
+         if (OrderJournal.url != null) {
+            return;
+         }
+         OrderJournal.url = url;
+         OrderJournal.properties = properties;
+         if (FILE.exists()) {
+            try {
+               open();
+            } catch (IOException e) {
+               System.err.println("Unable to open the order journal: " + e.getMessage());
+            }
+         }
+      }
 
-                           long now = System.currentTimeMillis();
-                           Timestamp time = new Timestamp(now);
-                           String timestamp = time.toString();
+      // whether orders are being journaled, so new ones have to be too
+      static synchronized boolean offline() {
+         return journal != null;
+      }
 
-                           try{
-                              query = String.format("UPDATE ItemStatus SET itemName = '%s', lastUpdated = '%s' WHERE orderid = '%s' AND itemName = '%s'", newMenuItem, timestamp, orderID, itemName);
-                              esql.executeUpdate(query);
-				
-			      System.out.println("Order successfully updated!");
-                           }catch(Exception e){
-                              System.out.println("Unable to update item, please re-try, or contact devs");
-			      System.err.println(e.getMessage());
-                           }
+      private static OrderJournal open() throws IOException {
+         if (journal == null) {
+            journal = new OrderJournal();
+            Thread replayer = new Thread(new Runnable() {
+               public void run() {
+                  replayUntilEmpty();
+               }
+            }, "cafe-journal-replay");
+            replayer.setDaemon(true);
+            replayer.start();
+         }
+         return journal;
+      }
 
-                           tempMenu = false;
-                        }
+      /*
+       * Appends an order and waits until it is on disk. Unit prices are
+       * kept as exact cents.
+       */
+      static void append(UUID orderKey, Timestamp time, int userID, boolean paid,
+            Map<Integer, Integer> quantities, Map<Integer, BigDecimal> prices) throws IOException {
+         ByteBuffer record = ByteBuffer.allocate(8 + 33 + 16 * quantities.size());
+         record.position(8);
+         record.putLong(orderKey.getMostSignificantBits()).putLong(orderKey.getLeastSignificantBits());
+         record.putLong(time.getTime()).putInt(userID).put((byte) (paid ? 1 : 0)).putInt(quantities.size());
+         for (Map.Entry<Integer, Integer> item : quantities.entrySet()) {
+            record.putInt(item.getKey()).putInt(item.getValue())
+                  .putLong(prices.get(item.getKey()).movePointRight(2).longValueExact());
+         }
+         CRC32 crc = new CRC32();
+         crc.update(record.array(), 8, record.capacity() - 8);
+         record.putInt(0, record.capacity() - 8).putInt(4, (int) crc.getValue());
+
+         OrderJournal journal;
+         int end;
+         synchronized (OrderJournal.class) {
+            journal = open();
+            end = journal.written + record.capacity();
+            // with room for the zero length that ends the records
+            if (end + 4 > journal.buffer.capacity()) {
+               throw new IOException("The order journal " + FILE + " is full");
+            }
+            journal.buffer.position(journal.written);
+            journal.buffer.put(record.array());
+            journal.buffer.putInt(end, 0);
+            journal.written = end;
+         }
+         journal.force(end);
+      }
 
-                     } break;
-                     case 3: tempMenu = false; break;
-                     default: System.out.println("Choose either 1, 2 , or 3"); break;
+      // waits until the records up to end are on disk, forcing them unless
+      // another append already is
+      private void force(int end) throws IOException {
+         while (true) {
+            int target;
+            synchronized (OrderJournal.class) {
+               while (this.forcing && this.forced < end) {
+                  try {
+                     OrderJournal.class.wait();
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new InterruptedIOException("Interrupted while saving the order");
+                  }
+               }
+               if (this.forced >= end) {
+                  return;
+               }
+               this.forcing = true;
+               target = this.written;
+            }
+            boolean done = false;
+            try {
+               this.buffer.force();
+               done = true;
+            } finally {
+               synchronized (OrderJournal.class) {
+                  this.forcing = false;
+                  if (done) {
+                     this.forced = Math.max(this.forced, target);
                   }
+                  OrderJournal.class.notifyAll();
+               }
+            }
+         }
+      }
 
-               }while(tempMenu);
+      // replays every REPLAY_MS until the journal is empty and deleted
+      private static void replayUntilEmpty() {
+         while (true) {
+            try {
+               Thread.sleep(REPLAY_MS);
+            } catch (InterruptedException e) {
+               return;
+            }
+            try {
+               if (replay()) {
+                  return;
+               }
+            } catch (SQLException e) {
+               // while the database is unreachable, try again later; other
+               // errors need someone to look at the orders
+               if (!isConnectionLost(e)) {
+                  System.err.println("Unable to replay the order journal: " + e.getMessage());
+               }
+            } catch (IOException e) {
+               System.err.println("Unable to replay the order journal: " + e.getMessage());
+            }
+         }
+      }
 
+      /*
+       * Places the orders forced to disk so far, each in a transaction of its
+       * own on a connection of its own, then moves the replayed offset past
+       * those placed or moved to the dead letter file. Returns whether the
+       * journal was emptied and deleted.
+       */
+      static boolean replay() throws SQLException, IOException {
+         OrderJournal journal;
+         int from;
+         int to;
+         List<Record> records = new ArrayList<Record>();
+         synchronized (OrderJournal.class) {
+            journal = OrderJournal.journal;
+            if (journal == null) {
+               return true;
             }
-            else if(!itemStatus.equals("Hasn't started")){
-               System.out.println("The item has been started, you may not update this item for this specific ID, please choose another item");
+            from = journal.replayed;
+            to = journal.forced;
+            ByteBuffer buffer = journal.buffer.duplicate();
+            buffer.position(from);
+            while (buffer.position() < to) {
+               int start = buffer.position();
+               byte[] bytes = new byte[8 + buffer.getInt(start)];
+               buffer.get(bytes);
+               ByteBuffer in = ByteBuffer.wrap(bytes);
+               in.position(8);
+               UUID orderKey = new UUID(in.getLong(), in.getLong());
+               Timestamp time = new Timestamp(in.getLong());
+               int userID = in.getInt();
+               boolean paid = in.get() != 0;
+               Record record = new Record(bytes, buffer.position(), orderKey,
+                     new Object[] { null, orderKey, userID, paid, time }, new Object[] { time, orderKey, time });
+               for (int count = in.getInt(); count > 0; count--) {
+                  int itemID = in.getInt();
+                  int quantity = in.getInt();
+                  record.items.add(new Object[] { itemID, quantity, time, ItemState.NOT_STARTED.code,
+                        BigDecimal.valueOf(in.getLong(), 2), orderKey, time });
+               }
+               records.add(record);
             }
+         }
 
+         // the end of the records placed or moved aside, up to the first
+         // one left for another try
+         int replayed = from;
+         if (!records.isEmpty()) {
+            Connection connection = DriverManager.getConnection(url, properties);
+            try {
+               connection.setAutoCommit(false);
+               boolean blocked = false;
+               for (Record record : records) {
+                  boolean done;
+                  try {
+                     place(connection, record);
+                     connection.commit();
+                     journal.failures.remove(record.orderKey);
+                     done = true;
+                  } catch (SQLException e) {
+                     try {
+                        connection.rollback();
+                     } catch (SQLException lost) {
+                        throw e;
+                     }
+                     if (isTransient(e)) {
+                        throw e;
+                     }
+                     done = failed(journal, record, e);
+                  }
+                  blocked |= !done;
+                  if (!blocked) {
+                     replayed = record.end;
+                  }
+               }
+            } finally {
+               connection.close();
+               QueryCache.SHARED.invalidate(QueryCache.tables("Orders ItemStatus"));
+               synchronized (OrderJournal.class) {
+                  journal.replayed = replayed;
+                  journal.buffer.putInt(4, replayed);
+               }
+            }
          }
-      
 
+         synchronized (OrderJournal.class) {
+            if (journal.written > journal.replayed) {
+               journal.buffer.force();
+               return false;
+            }
+            OrderJournal.journal = null;
+            journal.lock.release();
+            journal.file.close();
+            if (!FILE.delete()) {
+               throw new IOException("Unable to delete the replayed order journal " + FILE);
+            }
+            return true;
+         }
       }
-      else if(paidStatus.equals("t")){
 
-         System.out.println("You may not modify this order");
+      // places one order, its items and its total; an order placed by an
+      // earlier replay is left as it is
+      private static void place(Connection connection, Record record) throws SQLException {
+         record.order[0] = IdAllocator.ORDERS.nextId(connection);
+         batch(connection, "INSERT INTO Orders (orderid, orderKey, userid, paid, timeStampRecieved, total) " +
+               "VALUES (?, ?, ?, ?, ?, 0) ON CONFLICT DO NOTHING", Collections.singletonList(record.order));
+         batch(connection, "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemid, quantity, lastUpdated, status, price) " +
+               "SELECT orderid, timeStampRecieved, ?, ?, ?, ?, ? " +
+               "FROM Orders WHERE orderKey = ? AND timeStampRecieved = ? " +
+               "ON CONFLICT DO NOTHING", record.items);
+         // the order time is given for the items too, so only the
+         // partition of its month is searched
+         batch(connection, "UPDATE Orders O SET total = (SELECT COALESCE(SUM(I.price * I.quantity), 0) " +
+               "FROM ItemStatus I WHERE I.orderid = O.orderid AND I.orderTimeStamp = ?) " +
+               "WHERE O.orderKey = ? AND O.timeStampRecieved = ?", Collections.singletonList(record.total));
+      }
 
+      // counts a refused replay of record; once it was refused REPLAY_ATTEMPTS
+      // times it is appended to the dead letter file and reported, and true
+      // is returned
+      private static boolean failed(OrderJournal journal, Record record, SQLException e) throws IOException {
+         Integer failures = journal.failures.get(record.orderKey);
+         failures = failures == null ? 1 : failures + 1;
+         if (failures < REPLAY_ATTEMPTS) {
+            journal.failures.put(record.orderKey, failures);
+            return false;
+         }
+         // the same framing as the journal, so the records can be looked at
+         // or replayed by hand
+         FileOutputStream out = new FileOutputStream(FAILED, true);
+         try {
+            out.write(record.bytes);
+            out.getFD().sync();
+         } finally {
+            out.close();
+         }
+         journal.failures.remove(record.orderKey);
+         System.err.printf("Order %s from the journal was refused %d times and moved to %s: %s\n",
+               record.orderKey, failures, FAILED, e.getMessage());
+         return true;
       }
 
-   }//end fucntion modify order
-   public static void outputOrderHistroy(Cafe esql, String login){
-	
-	System.out.println("Order histroy from the past 24 hours.");
-      List<List<String>> result = new ArrayList<List<String>>();
-      String query;
-	String timeString, dayBeforeString;
+      private static void batch(Connection connection, String sql, List<Object[]> rows) throws SQLException {
+         PreparedStatement stmt = connection.prepareStatement(sql);
+         try {
+            stmt.setQueryTimeout(STATEMENT_TIMEOUT);
+            for (Object[] row : rows) {
+               for (int i = 0; i < row.length; i++) {
+                  stmt.setObject(i + 1, row[i]);
+               }
+               stmt.addBatch();
+            }
+            stmt.executeBatch();
+         } finally {
+            stmt.close();
+         }
+      }
+   }// end OrderJournal
 
-	long now = System.currentTimeMillis();
-	Timestamp time = new Timestamp(now);
-	timeString = time.toString();
-	
-	Calendar cal = Calendar.getInstance();
-	cal.setTimeInMillis(time.getTime());
-	cal.add(Calendar.DAY_OF_MONTH, -1);
-	time = new Timestamp(cal.getTime().getTime());
+   /*
+    * Token buckets per login: each login may act burst times in a row, and
+    * regains perMinute actions a minute after that. Buckets of the least
+    * recently seen logins are dropped once there are more than MAX_KEYS.
+    */
+   static class RateLimiter {
+      static final RateLimiter LOGIN = new RateLimiter(
+            Integer.getInteger("cafe.rate.login.burst", 5), Integer.getInteger("cafe.rate.login.perMinute", 10));
+      static final RateLimiter ORDER = new RateLimiter(
+            Integer.getInteger("cafe.rate.order.burst", 5), Integer.getInteger("cafe.rate.order.perMinute", 20));
+      private static final int MAX_KEYS = 10000;
+
+      private final double burst;
+      private final double tokensPerNano;
+      // tokens left and when they were counted, by login
+      private final Map<String, double[]> buckets = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAX_KEYS;
+         }
+      };
+      private final long start = System.nanoTime();
 
-	dayBeforeString = time.toString();
-         try{
-            
-            //query = String.format("SELECT orderid, itemName FROM ItemStatus WHERE '%s' >= dateadd(day, datediff(day, 1, GETDATE()), 0) AND '%s' < dateadd(day, datediff(day,0,GETDATE()),0)", time, time);
-            query = String.format("SELECT * FROM ItemStatus WHERE lastUpdated < '%s' AND lastUpdated >= '%s'", timeString, dayBeforeString); 
-	    result = esql.executeQueryAndReturnResult(query);
+      RateLimiter(int burst, int perMinute) {
+         this.burst = burst;
+         this.tokensPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+      }
 
-         }catch(Exception e){
-            //System.out.println("Unable to process the request, please contact devs");
-            System.err.println(e.getMessage());
+      // takes a token from key's bucket, false when it is empty
+      synchronized boolean tryAcquire(String key) {
+         double[] bucket = refill(key);
+         if (bucket[0] < 1) {
+            return false;
+         }
+         bucket[0]--;
+         return true;
+      }
+
+      // whether key's bucket has a token, without taking it
+      synchronized boolean hasToken(String key) {
+         return refill(key)[0] >= 1;
+      }
+
+      // key's bucket with the tokens regained since it was last counted
+      private double[] refill(String key) {
+         double now = System.nanoTime() - start;
+         double[] bucket = buckets.get(key);
+         if (bucket == null) {
+            bucket = new double[] { burst, now };
+            buckets.put(key, bucket);
          }
+         bucket[0] = Math.min(burst, bucket[0] + (now - bucket[1]) * tokensPerNano);
+         bucket[1] = now;
+         return bucket;
+      }
+   }// end RateLimiter
+
+   /*
+    * Bounds the statements in flight against the database across all
+    * sessions in this JVM to cafe.maxInFlight (default 8). A statement waits
+    * up to cafe.admission.timeoutMs (default 2000) for a slot and is refused
+    * after that, so a rush queues briefly instead of piling onto the
+    * database.
+    */
+   static class Admission {
+      private static final Semaphore slots = new Semaphore(Integer.getInteger("cafe.maxInFlight", 8), true);
+      private static final long timeoutMs = Long.getLong("cafe.admission.timeoutMs", 2000);
+      // statements refused for lack of a slot
+      static final AtomicLong shed = new AtomicLong();
 
-         for(int i = 0; i < result.size(); i++){
-            for(int j = 0; j < result.get(i).size(); j++){
-                  System.out.printf(result.get(i).get(j) + " ");
+      static void acquire() throws SQLException {
+         try {
+            if (slots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+               return;
             }
-            System.out.println();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
          }
+         shed.incrementAndGet();
+         // 53000: insufficient resources
+         throw new SQLException("The cafe is very busy right now, please try again in a moment.", "53000");
+      }
 
-      
+      static void release() {
+         slots.release();
+      }
+   }// end Admission
 
+   /*
+    * Startup timeline of the session, in milliseconds since the JVM started.
+    * Printed on exit when run with -Dcafe.startup.report=true.
+    */
+   static class Startup {
+      private static final Map<String, Long> marks = new LinkedHashMap<String, Long>();
 
-      
+      static synchronized void mark(String event) {
+         if (!marks.containsKey(event)) {
+            marks.put(event, System.currentTimeMillis());
+         }
+      }
 
-   }
+      static synchronized void report() {
+         if (!Boolean.getBoolean("cafe.startup.report")) {
+            return;
+         }
+         // read the JVM start time only now, loading the management classes
+         // takes a while
+         long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+         StringBuilder line = new StringBuilder("Startup (ms since JVM start):");
+         for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            line.append(' ').append(mark.getKey()).append(' ').append(mark.getValue() - jvmStart).append(',');
+         }
+         line.setLength(line.length() - 1);
+         System.err.println(line);
+      }
+   }// end Startup
 
-public static void outLast5Order(Cafe esql, String login){
+   /**
+    * Times the menu and order paths the way Cafe used to talk to PostgreSQL
+    * (literal SQL, no server-side prepare, text results) against the way it
+    * does now (bound parameters, server-prepared statements, binary results).
+    * Orders placed by the benchmark are rolled back.
+    *
+    * java -cp cafe.jar Cafe$QueryBenchmark dbname port user [iterations]
+    */
+   static class QueryBenchmark {
 
-	List<List<String>> result = new ArrayList<List<String>>();
-      	String query;
-	
-	 System.out.println("Last 5 orders are listed below");
+      public static void main(String[] args) throws Exception {
+         if (args.length < 3) {
+            System.err.println("Usage: java -cp <classpath> Cafe$QueryBenchmark <dbname> <port> <user> [iterations]");
+            return;
+         }
+         int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+         Class.forName(backend.driver);
+         String url = backend.url(args[0], args[1]);
+
+         Properties text = new Properties();
+         text.setProperty("user", args[2]);
+         text.setProperty("password", "");
+         text.setProperty("prepareThreshold", "0");
+         text.setProperty("binaryTransfer", "false");
+         Connection before = DriverManager.getConnection(url, text);
+         Connection after = DriverManager.getConnection(url, backend.properties(args[2], ""));
+
+         List<String> items = new ArrayList<String>();
+         List<Integer> itemIDs = new ArrayList<Integer>();
+         Statement stmt = after.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT itemName, itemid FROM Menu");
+         while (rs.next()) {
+            items.add(rs.getString(1).trim());
+            itemIDs.add(rs.getInt(2));
+         }
+         rs = stmt.executeQuery("SELECT userid FROM Users WHERE login = 'Admin'");
+         rs.next();
+         int userID = rs.getInt(1);
+         stmt.close();
+
+         // the first round only warms up the JIT and the statement caches
+         for (int round = 0; round < 2; round++) {
+            int n = round == 0 ? Math.max(1, iterations / 5) : iterations;
+            long[] times = {
+                  menu(before, false, n), menu(after, true, n),
+                  lookup(before, false, n, items), lookup(after, true, n, items),
+                  order(before, false, n / 10 + 1, itemIDs, userID), order(after, true, n / 10 + 1, itemIDs, userID) };
+            if (round == 0) {
+               continue;
+            }
+            System.out.printf("%-14s %12s %12s%n", "path", "text us/op", "binary us/op");
+            System.out.printf("%-14s %12.1f %12.1f%n", "full menu", times[0] / 1e3 / n, times[1] / 1e3 / n);
+            System.out.printf("%-14s %12.1f %12.1f%n", "item lookup", times[2] / 1e3 / n, times[3] / 1e3 / n);
+            System.out.printf("%-14s %12.1f %12.1f%n", "place order", times[4] / 1e3 / (n / 10 + 1),
+                  times[5] / 1e3 / (n / 10 + 1));
+         }
+         before.close();
+         after.close();
+      }
 
-         try{
+      static long menu(Connection c, boolean prepared, int n) throws SQLException {
+         long start = System.nanoTime();
+         for (int i = 0; i < n; i++) {
+            Statement stmt = prepared ? c.prepareStatement("SELECT * FROM Menu") : c.createStatement();
+            ResultSet rs = prepared ? ((PreparedStatement) stmt).executeQuery() : stmt.executeQuery("SELECT * FROM Menu");
+            readResult(rs);
+            stmt.close();
+         }
+         return System.nanoTime() - start;
+      }
 
-            query = String.format("SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments FROM ItemStatus I, Orders O WHERE I.orderid = O.orderid AND O.login = '%s' ORDER BY I.orderid DESC LIMIT 5", login);
-//            result = esql.executeQueryAndReturnResult(query);
-		esql.executeQueryAndPrintResult(query);
-         }catch(Exception e){
-            //System.out.println("Unable to process the request, please contact devs");
-            System.err.println(e.getMessage());
+      static long lookup(Connection c, boolean prepared, int n, List<String> items) throws SQLException {
+         long start = System.nanoTime();
+         for (int i = 0; i < n; i++) {
+            String item = items.get(i % items.size());
+            List<List<String>> price = prepared
+                  ? query(c, "SELECT price FROM Menu WHERE itemName = ?", item)
+                  : query(c, String.format("SELECT price FROM Menu WHERE itemName = '%s'", item));
+            new BigDecimal(price.get(0).get(0).trim());
          }
+         return System.nanoTime() - start;
+      }
 
-         //for(int i = 0; i < result.size(); i++){
-         //   for(int j = 0; j < result.get(i).size(); j++){
-         //         System.out.printf(result.get(i).get(j) + " ");
-         //   } 
-         //   System.out.println();
-         //}	
+      // insert an order with three items and sum its total, as PlaceOrder does
+      static long order(Connection c, boolean prepared, int n, List<Integer> items, int userID) throws SQLException {
+         long start = System.nanoTime();
+         c.setAutoCommit(false);
+         for (int i = 0; i < n; i++) {
+            Timestamp time = new Timestamp(System.currentTimeMillis());
+            if (prepared) {
+               int id = Integer.parseInt(query(c, "INSERT INTO Orders (orderKey, userid, paid, timeStampRecieved, total) " +
+                     "VALUES (?, ?, ?, ?, 0) ON CONFLICT DO NOTHING RETURNING orderid",
+                     UUID.randomUUID(), userID, false, time).get(0).get(0).trim());
+               for (int j = 0; j < 3; j++) {
+                  int item = items.get((i + j) % items.size());
+                  update(c, "INSERT INTO ItemStatus (orderid, orderTimeStamp, itemid, lastUpdated, status, price) " +
+                        "VALUES (?, ?, ?, ?, ?, (SELECT price FROM Menu WHERE itemid = ?))",
+                        id, time, item, time, ItemState.NOT_STARTED.code, item);
+               }
+               update(c, "UPDATE Orders O SET total = (SELECT COALESCE(SUM(I.price * I.quantity), 0) FROM ItemStatus I " +
+                     "WHERE I.orderid = O.orderid AND I.orderTimeStamp = ?) " +
+                     "WHERE O.orderid = ? AND O.timeStampRecieved = ?", time, id, time);
+            } else {
+               update(c, String.format("INSERT INTO Orders (userid, paid, timeStampRecieved, total) VALUES ('%s', '%s', '%s', 0)",
+                     userID, "f", time));
+               String id = query(c, String.format("SELECT orderid FROM Orders WHERE userid = '%s' AND timeStampRecieved = '%s'",
+                     userID, time)).get(0).get(0).trim();
+               for (int j = 0; j < 3; j++) {
+                  int item = items.get((i + j) % items.size());
+                  update(c, String.format("INSERT INTO ItemStatus (orderid, orderTimeStamp, itemid, lastUpdated, status, price) " +
+                        "VALUES ('%s', '%s', '%s', '%s', '%s', (SELECT price FROM Menu WHERE itemid = '%s'))",
+                        id, time, item, time, ItemState.NOT_STARTED.code, item));
+               }
+               update(c, String.format("UPDATE Orders O SET total = (SELECT COALESCE(SUM(I.price * I.quantity), 0) FROM ItemStatus I " +
+                     "WHERE I.orderid = O.orderid AND I.orderTimeStamp = O.timeStampRecieved) " +
+                     "WHERE O.orderid = '%s'", id));
+            }
+            c.rollback();
+         }
+         c.setAutoCommit(true);
+         return System.nanoTime() - start;
+      }
 
-	//System.out.println("Test");
-}
+      static List<List<String>> query(Connection c, String sql, Object... params) throws SQLException {
+         PreparedStatement stmt = c.prepareStatement(sql);
+         for (int i = 0; i < params.length; i++) {
+            stmt.setObject(i + 1, params[i]);
+         }
+         List<List<String>> result = readResult(stmt.executeQuery());
+         stmt.close();
+         return result;
+      }
 
-   public static void changeOrderPaidStatus(Cafe esql, String login){
+      static void update(Connection c, String sql, Object... params) throws SQLException {
+         if (params.length == 0) {
+            Statement stmt = c.createStatement();
+            stmt.executeUpdate(sql);
+            stmt.close();
+            return;
+         }
+         PreparedStatement stmt = c.prepareStatement(sql);
+         for (int i = 0; i < params.length; i++) {
+            stmt.setObject(i + 1, params[i]);
+         }
+         stmt.executeUpdate();
+         stmt.close();
+      }
+   }// end QueryBenchmark
 
-      String orderID;
-      String paidStatus = "false";
+   /**
+    * Runs scripted sessions through the real screens, to load-test them end
+    * to end. Each simulated customer opens its own Cafe, like a terminal,
+    * and runs the scenario the given number of times. A scenario holds the
+    * lines a user would type, one per line; ${login}, ${password} and
+    * ${lastOrder} (the customer's latest order) are filled in, and lines
+    * starting with # are skipped. Prints the throughput and, per scenario
+    * line, the time the session took to ask for its next input.
+    *
+    * Session output is discarded, or kept per customer in the directory
+    * given by cafe.driver.transcripts. Orders are rate limited per customer
+    * (see RateLimiter); raise cafe.rate.order.burst to run many sessions per
+    * customer.
+    *
+    * java -cp cafe.jar Cafe$LoadDriver dbname port user scenario [customers] [sessions]
+    */
+   static class LoadDriver {
 
-      while (true) {
+      public static void main(String[] args) throws Exception {
+         if (args.length < 4) {
+            System.err.println("Usage: java -cp <classpath> Cafe$LoadDriver <dbname> <port> <user> <scenario> " +
+                  "[customers] [sessions per customer]");
+            return;
+         }
+         final String dbname = args[0], dbport = args[1], user = args[2];
+         final List<String> scenario = readScenario(args[3]);
+         int customers = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+         final int sessions = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+         final String transcripts = System.getProperty("cafe.driver.transcripts");
+         if (transcripts != null) {
+            new File(transcripts).mkdirs();
+         }
+
+         Cafe setup = new Cafe(dbname, dbport, user, "");
+         List<List<String>> accounts = setup.executeQueryAndReturnResult(
+               "SELECT login, password FROM Users WHERE type = 'Customer' ORDER BY userid LIMIT ?", customers);
+         setup.cleanup();
+         customers = accounts.size();
+
+         PrintStream console = System.out;
+         System.setOut(new PrintStream(new SessionOutput(System.out), true));
+         System.setErr(new PrintStream(new SessionOutput(System.err), true));
+         // nanoseconds each session spent on each scenario line, -1 when the
+         // session did not get that far
+         final long[][] latencies = new long[scenario.size()][customers * sessions];
+         for (long[] step : latencies) {
+            Arrays.fill(step, -1);
+         }
+         final AtomicInteger incomplete = new AtomicInteger(), failed = new AtomicInteger();
+         ExecutorService customerThreads = Executors.newFixedThreadPool(customers);
+         long start = System.nanoTime();
+         for (int c = 0; c < customers; c++) {
+            final int customer = c;
+            final String login = accounts.get(c).get(0).trim();
+            final String password = accounts.get(c).get(1).trim();
+            customerThreads.submit(new Runnable() {
+               public void run() {
+                  OutputStream transcript = SessionOutput.DISCARD;
+                  Cafe esql = null;
+                  try {
+                     if (transcripts != null) {
+                        transcript = new BufferedOutputStream(
+                              new FileOutputStream(new File(transcripts, "customer-" + customer + ".txt")));
+                     }
+                     SessionOutput.redirect(transcript);
+                     esql = new Cafe(dbname, dbport, user, "");
+                     esql.prefetchMenu();
+                     for (int s = 0; s < sessions; s++) {
+                        ScriptedInput input = new ScriptedInput(esql, scenario, login, password,
+                              latencies, customer * sessions + s);
+                        in.use(input);
+                        runSession(esql);
+                        if (!input.finish()) {
+                           incomplete.incrementAndGet();
+                        }
+                     }
+                  } catch (Exception e) {
+                     failed.incrementAndGet();
+                     e.printStackTrace();
+                  } finally {
+                     in.use(null);
+                     if (esql != null) {
+                        esql.cleanup();
+                     }
+                     try {
+                        transcript.close();
+                     } catch (IOException e) {
+                        // ignored.
+                     }
+                     SessionOutput.redirect(null);
+                  }
+               }
+            });
+         }
+         customerThreads.shutdown();
+         customerThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+         double seconds = (System.nanoTime() - start) / 1e9;
+
+         int lines = 0;
+         List<List<String>> rows = new ArrayList<List<String>>();
+         for (int i = 0; i < scenario.size(); i++) {
+            long[] reached = new long[latencies[i].length];
+            int count = 0;
+            for (long nanos : latencies[i]) {
+               if (nanos >= 0) {
+                  reached[count++] = nanos;
+               }
+            }
+            reached = Arrays.copyOf(reached, count);
+            Arrays.sort(reached);
+            lines += count;
+            long total = 0;
+            for (long nanos : reached) {
+               total += nanos;
+            }
+            rows.add(Arrays.asList(String.valueOf(i + 1), scenario.get(i), String.valueOf(count),
+                  millis(count == 0 ? 0 : total / count), millis(percentile(reached, 50)),
+                  millis(percentile(reached, 95)), millis(percentile(reached, 99)), millis(percentile(reached, 100))));
+         }
+         console.printf("%d sessions of %d customers in %.2f s: %.1f sessions/s, %.1f inputs/s, " +
+               "%d incomplete, %d failed, %d statements shed\n", customers * sessions, customers, seconds,
+               customers * sessions / seconds, lines / seconds, incomplete.get(), failed.get(), Admission.shed.get());
+         console.println(QueryCache.SHARED.stats());
+         TableRenderer.printAll(Arrays.asList("Line", "Input", "Count", "Mean ms", "p50", "p95", "p99", "Max"), rows);
+      }
+
+      // the input lines of a scenario file, without its # comments
+      private static List<String> readScenario(String path) throws IOException {
+         List<String> lines = new ArrayList<String>();
+         BufferedReader reader = new BufferedReader(new FileReader(path));
          try {
-            System.out.println("What order ID would you like to change?");
-            orderID = in.readLine();
-            // if(nameName.length() > 50){
-            // throw new SQLException("Name exceeds limit. Please try a smaller name.");
-            // }
-            break;
-         } catch (Exception e) {
-            System.out.println("Please input an orderID");
-            continue;
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (!line.startsWith("#")) {
+                  lines.add(line);
+               }
+            }
+         } finally {
+            reader.close();
          }
+         return lines;
       }
 
-      System.out.printf("What paid status would you like to give to this order for orderID [%s]?\n", orderID);
-      System.out.println("1. Paid");
-      System.out.println("2. Non-Paid");
-      switch(readChoice()){
-         case 1: paidStatus = "t"; break;
-         case 2: paidStatus = "f"; break;
-         default: System.out.println("Please input 1, 2"); break;
+      private static long percentile(long[] sorted, int p) {
+         if (sorted.length == 0) {
+            return 0;
+         }
+         return sorted[Math.max(0, (int) Math.ceil(sorted.length * p / 100.0) - 1)];
+      }
 
+      private static String millis(long nanos) {
+         return String.format("%.1f", nanos / 1e6);
       }
+   }// end LoadDriver
 
-      try{
+   /*
+    * The input of one scripted session: the scenario's lines with the
+    * customer's details filled in. Notes how long the session took to ask for
+    * the next line after each line was given.
+    */
+   static class ScriptedInput extends BufferedReader {
+      private final Cafe esql;
+      private final List<String> lines;
+      private final String login, password;
+      private final long[][] latencies;
+      private final int session;
+      private int next = 0;
+      private long givenAt;
+
+      ScriptedInput(Cafe esql, List<String> lines, String login, String password, long[][] latencies, int session) {
+         super(new Reader() {
+            public int read(char[] cbuf, int off, int len) {
+               return -1;
+            }
 
-         String query = String.format("UPDATE Orders SET paid = '%s' WHERE orderid = '%s'", paidStatus, orderID);
-         esql.executeUpdate(query);
-	 System.out.println("Status updated successfully!");
-      }catch(Exception e){
-         System.out.println("Order ID does not exist.");
+            public void close() {
+            }
+         });
+         this.esql = esql;
+         this.lines = lines;
+         this.login = login;
+         this.password = password;
+         this.latencies = latencies;
+         this.session = session;
       }
 
-   }
+      public String readLine() {
+         finishLine();
+         if (next == lines.size()) {
+            return null;
+         }
+         String line = fill(lines.get(next++));
+         givenAt = System.nanoTime();
+         return line;
+      }
+
+      // notes the latency of the line given last, once
+      private void finishLine() {
+         if (next > 0 && latencies[next - 1][session] < 0) {
+            latencies[next - 1][session] = System.nanoTime() - givenAt;
+         }
+      }
+
+      // ends the session; false when it stopped before the last line
+      boolean finish() {
+         finishLine();
+         return next == lines.size();
+      }
+
+      private String fill(String line) {
+         line = line.replace("${login}", login).replace("${password}", password);
+         if (line.contains("${lastOrder}")) {
+            String order = "";
+            try {
+               List<List<String>> result = esql.executeQueryAndReturnResult(
+                     "SELECT max(orderid) FROM Orders WHERE userid = ?", esql.getUserId(login));
+               if (!result.isEmpty() && result.get(0).get(0) != null) {
+                  order = result.get(0).get(0);
+               }
+            } catch (SQLException e) {
+               // leave it empty, the screen will complain
+            }
+            line = line.replace("${lastOrder}", order);
+         }
+         return line;
+      }
+   }// end ScriptedInput
 
 }// end Cafe
@@ -0,0 +1,22 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh.
+# Run Cafe with -Dcafe.replicas=localhost:8193 to send menu and history
+# reads to it.
+folder=/tmp/$USER
+replica=$folder/myReplica
+export REPLICA_PORT=${REPLICA_PORT:-8193}
+
+echo $replica
+
+#Clear folder
+rm -rf $replica
+
+#Initialize folders
+mkdir $replica
+mkdir $replica/sockets
+
+#Copy the primary, configured to follow it (-R)
+pg_basebackup -h localhost -p $PGPORT -D $replica/data -R -X stream
+
+#Start replica
+pg_ctl -o "-c unix_socket_directories=$replica/sockets -p $REPLICA_PORT" -D $replica/data -l $folder/replica.logfile start
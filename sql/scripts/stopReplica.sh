@@ -0,0 +1,3 @@
+#! /bin/bash
+folder=/tmp/$USER
+pg_ctl -D $folder/myReplica/data -l $folder/replica.logfile stop
@@ -1,7 +1,23 @@
 CREATE INDEX index1
 ON orders
-(timeStampRecieved);
+(timeStampRecieved)
+INCLUDE (userid, paid, total);
 
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX index3
+ON Orders
+(userid, timeStampRecieved);
+
+CREATE INDEX index4
+ON FavoriteItems
+(itemid);
+
+-- Only items the kitchen still has to make, oldest first; a few hundred rows
+-- against the whole order history.
+CREATE INDEX index5
+ON ItemStatus
+(orderTimeStamp, orderid)
+WHERE status < 2;
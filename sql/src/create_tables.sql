@@ -1,38 +1,107 @@
+DROP TABLE FavoriteItems;
 DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP FUNCTION ensure_month_partitions(date, date);
 
+-- Orders and favorites reference users by the surrogate userid, so renaming a
+-- login only changes the Users row.
 CREATE TABLE Users(
+	userid serial NOT NULL,
 	login char(50) UNIQUE NOT NULL, 
 	phoneNum char(16) UNIQUE, 
 	password char(50) NOT NULL,
-	favItems char(400),
 	type char(8) NOT NULL,
-	PRIMARY KEY(login));
+	PRIMARY KEY(userid));
 
+-- Order items and favorites reference menu items by the surrogate itemid,
+-- which keeps their rows and indexes small and makes a rename one row change.
 CREATE TABLE Menu(
+	itemid serial NOT NULL,
 	itemName char(50) UNIQUE NOT NULL,
 	type char(20) NOT NULL,
-	price real NOT NULL,
+	price numeric(10,2) NOT NULL,
 	description char(400),
 	imageURL char(256),
-	PRIMARY KEY(itemName));
+	PRIMARY KEY(itemid));
 
+-- One row per favorite item of a user; the primary key is the per-user index
+-- the favorites are read through.
+CREATE TABLE FavoriteItems(
+	userid integer NOT NULL,
+	itemid integer NOT NULL,
+	PRIMARY KEY(userid,itemid),
+	FOREIGN KEY(userid) REFERENCES Users(userid) ON DELETE CASCADE,
+	FOREIGN KEY(itemid) REFERENCES Menu(itemid) ON DELETE CASCADE);
+
+-- Orders and ItemStatus are range partitioned by month on the order time so
+-- closed months can be archived and dropped without touching the hot data.
+-- A unique key on a partitioned table has to contain the partition key,
+-- hence ItemStatus carries its order's timestamp.
+-- version is bumped by every update so concurrent edits can detect each other.
+-- orderKey is chosen by the client placing the order and reused when it
+-- retries, so a retry finds the order instead of placing it twice; loaded
+-- orders have none.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	orderid serial NOT NULL,
+	orderKey uuid,
+	userid integer REFERENCES Users(userid), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
-	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	total numeric(10,2) NOT NULL,
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,timeStampRecieved),
+	UNIQUE(orderKey,timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
+
+-- The application reserves order ids in blocks of one step of the sequence
+-- (hi-lo), so it takes the sequence once per block instead of once per order.
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY 50;
 
+-- status is the item's kitchen state: 0 hasn't started, 1 started,
+-- 2 finished (ItemState in Cafe.java). price is the item's menu price when
+-- it was ordered, so past sales keep their revenue when the menu is repriced.
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	orderTimeStamp timestamp NOT NULL,
+	itemid integer NOT NULL, 
+	quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
+	price numeric(10,2) NOT NULL,
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
+	status smallint NOT NULL DEFAULT 0 CHECK (status BETWEEN 0 AND 2), 
 	comments char(130), 
-	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,itemid,orderTimeStamp),
+	FOREIGN KEY(orderid,orderTimeStamp) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemid) REFERENCES Menu(itemid))
+	PARTITION BY RANGE (orderTimeStamp);
+
+-- Creates the monthly orders_YYYY_MM / itemstatus_YYYY_MM partitions for
+-- every month from firstMonth to lastMonth that does not exist yet.
+CREATE FUNCTION ensure_month_partitions(firstMonth date, lastMonth date)
+RETURNS integer AS $$
+DECLARE
+	m date;
+	created integer := 0;
+BEGIN
+	FOR m IN SELECT generate_series(date_trunc('month', firstMonth),
+			date_trunc('month', lastMonth), interval '1 month')::date LOOP
+		IF to_regclass('orders_' || to_char(m, 'YYYY_MM')) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+				'orders_' || to_char(m, 'YYYY_MM'), m, m + interval '1 month');
+			EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+				'itemstatus_' || to_char(m, 'YYYY_MM'), m, m + interval '1 month');
+			created := created + 1;
+		END IF;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TABLE orders_default PARTITION OF Orders DEFAULT;
+CREATE TABLE itemstatus_default PARTITION OF ItemStatus DEFAULT;
+
+-- Only the months from now on; load_data.sql adds the months back to its
+-- oldest order, so no empty partitions are searched for older dates.
+SELECT ensure_month_partitions(now()::date, (now() + interval '12 months')::date);
@@ -0,0 +1,78 @@
+-- Schema for the embedded backend (H2 in PostgreSQL mode) used for load tests
+-- and benchmarks. Same tables as create_tables.sql without the PostgreSQL-only
+-- month partitioning; keep the two in sync.
+
+-- Orders and favorites reference users by the surrogate userid, so renaming a
+-- login only changes the Users row.
+CREATE TABLE Users(
+	userid serial NOT NULL,
+	login char(50) UNIQUE NOT NULL, 
+	phoneNum char(16) UNIQUE, 
+	password char(50) NOT NULL,
+	type char(8) NOT NULL,
+	PRIMARY KEY(userid));
+
+-- Order items and favorites reference menu items by the surrogate itemid,
+-- which keeps their rows and indexes small and makes a rename one row change.
+CREATE TABLE Menu(
+	itemid serial NOT NULL,
+	itemName char(50) UNIQUE NOT NULL,
+	type char(20) NOT NULL,
+	price numeric(10,2) NOT NULL,
+	description char(400),
+	imageURL char(256),
+	PRIMARY KEY(itemid));
+
+-- One row per favorite item of a user; the primary key is the per-user index
+-- the favorites are read through.
+CREATE TABLE FavoriteItems(
+	userid integer NOT NULL,
+	itemid integer NOT NULL,
+	PRIMARY KEY(userid,itemid),
+	FOREIGN KEY(userid) REFERENCES Users(userid) ON DELETE CASCADE,
+	FOREIGN KEY(itemid) REFERENCES Menu(itemid) ON DELETE CASCADE);
+
+-- The application reserves order ids in blocks of one step of the sequence
+-- (hi-lo), so it takes the sequence once per block instead of once per order.
+CREATE SEQUENCE orders_orderid_seq INCREMENT BY 50;
+
+CREATE TABLE Orders(
+	orderid integer NOT NULL DEFAULT nextval('orders_orderid_seq'),
+	orderKey uuid,
+	userid integer REFERENCES Users(userid), 
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total numeric(10,2) NOT NULL,
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,timeStampRecieved),
+	UNIQUE(orderKey,timeStampRecieved));
+
+CREATE TABLE ItemStatus(
+	orderid integer,
+	orderTimeStamp timestamp NOT NULL,
+	itemid integer NOT NULL, 
+	quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
+	price numeric(10,2) NOT NULL,
+	lastUpdated timestamp NOT NULL,
+	status smallint NOT NULL DEFAULT 0 CHECK (status BETWEEN 0 AND 2), 
+	comments char(130), 
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,itemid,orderTimeStamp),
+	FOREIGN KEY(orderid,orderTimeStamp) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemid) REFERENCES Menu(itemid));
+
+CREATE INDEX index1
+ON Orders
+(timeStampRecieved);
+
+CREATE INDEX index2
+ON ItemStatus
+( orderid );
+
+CREATE INDEX index3
+ON Orders
+(userid, timeStampRecieved);
+
+CREATE INDEX index4
+ON FavoriteItems
+(itemid);
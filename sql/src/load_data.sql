@@ -1,17 +1,74 @@
-COPY MENU
+COPY MENU (itemName, type, price, description, imageURL)
 FROM '/extra/amuno034/needed_files/166-final/data/menu.csv'
 WITH DELIMITER ';';
 
-COPY USERS
+-- users.csv keeps the favorite items as one comma separated column, split
+-- them into FavoriteItems, matching the menu names case insensitively.
+CREATE TEMP TABLE UsersLoad(
+	login char(50),
+	phoneNum char(16),
+	password char(50),
+	favItems char(400),
+	type char(8));
+
+COPY UsersLoad
 FROM '/extra/amuno034/needed_files/166-final/data/users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+INSERT INTO Users (login, phoneNum, password, type)
+SELECT login, phoneNum, password, type
+FROM UsersLoad;
+
+INSERT INTO FavoriteItems (userid, itemid)
+SELECT DISTINCT U.userid, M.itemid
+FROM UsersLoad L, Users U, unnest(string_to_array(L.favItems, ',')) F(name), Menu M
+WHERE U.login = L.login AND lower(trim(F.name)) = lower(trim(M.itemName));
+
+DROP TABLE UsersLoad;
+
+-- orders.csv names the user by login, look up the userid.
+CREATE TEMP TABLE OrdersLoad(
+	orderid integer,
+	login char(50),
+	paid boolean,
+	timeStampRecieved timestamp,
+	total numeric(10,2));
+
+COPY OrdersLoad
 FROM '/extra/amuno034/needed_files/166-final/data/orders.csv'
 WITH DELIMITER ';';
+
+-- the month partitions from the oldest order on
+SELECT ensure_month_partitions(MIN(timeStampRecieved)::date, now()::date)
+FROM OrdersLoad
+HAVING COUNT(*) > 0;
+
+INSERT INTO Orders (orderid, userid, paid, timeStampRecieved, total)
+SELECT L.orderid, U.userid, L.paid, L.timeStampRecieved, L.total
+FROM OrdersLoad L LEFT JOIN Users U ON U.login = L.login;
+
+DROP TABLE OrdersLoad;
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+-- itemStatus.csv has no order timestamp and names the menu item, pick up the
+-- timestamp from Orders so each row lands in its order's month partition, and
+-- the itemid from Menu.
+CREATE TEMP TABLE ItemStatusLoad(
+	orderid integer,
+	itemName char(50),
+	lastUpdated timestamp,
+	status char(20),
+	comments char(130));
+
+COPY ItemStatusLoad
 FROM '/extra/amuno034/needed_files/166-final/data/itemStatus.csv'
 WITH DELIMITER ';';
 
+INSERT INTO ItemStatus (orderid, orderTimeStamp, itemid, price, lastUpdated, status, comments)
+SELECT L.orderid, O.timeStampRecieved, M.itemid, M.price, L.lastUpdated,
+	CASE trim(L.status) WHEN 'Hasn''t started' THEN 0 WHEN 'Started' THEN 1 WHEN 'Finished' THEN 2 END,
+	L.comments
+FROM ItemStatusLoad L, Orders O, Menu M
+WHERE O.orderid = L.orderid AND M.itemName = L.itemName;
+
+DROP TABLE ItemStatusLoad;